@@ -0,0 +1,10 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Example: ./bench.sh search 209 3/5/2019 50 100
+#          ./bench.sh offline 1000
+java -cp lib/*:bin/ Benchmark $dbname $PGPORT $(logname) "$@"
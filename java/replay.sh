@@ -0,0 +1,10 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+
+cd $root/java
+
+# Example: ./replay.sh                      (every change)
+#          ./replay.sh 23200000             (changes from an offset)
+#          ./replay.sh --consumer rollups   (changes since the consumer last ran)
+java -cp lib/*:bin/ ChangeLog ${CHANGELOG:-changelog} "$@"
@@ -6,4 +6,5 @@ dbname=$(logname)_db
 cd $root/java
 
 # Example: ./run.sh
-java -cp lib/*:bin/ Ticketmaster $dbname $PGPORT $(logname)
+# With replicas: PGREPLICAPORTS=5433,5434 ./run.sh
+java -cp lib/*:bin/ Ticketmaster $dbname $PGPORT $(logname) ${PGREPLICAPORTS:-$PGREPLICAPORT}
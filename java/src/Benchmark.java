@@ -0,0 +1,480 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+import java.io.File;
+import java.sql.*;
+import java.util.*;
+
+
+/**
+ * This class times the alternative query plans against each other on a live
+ * database. Each benchmark warms up first and reports the mean latency.
+ *
+ */
+
+public class Benchmark{
+	private static final int WARMUP = 5;
+
+	/**
+	 * Interface for one timed run of a plan.
+	 */
+	interface Plan{
+		int run() throws Exception;
+	}
+
+	/**
+	 * Method to time a plan.
+	 *
+	 * @param name printed next to the result
+	 * @param iterations number of timed runs after the warmup
+	 * @param plan the plan to run
+	 * @return mean latency in milliseconds
+	 * @throws java.lang.Exception when the plan failed
+	 */
+	static double time(String name, int iterations, Plan plan) throws Exception {
+		int rows = 0;
+		for (int i = 0; i < WARMUP; i++){
+			rows = plan.run();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++){
+			rows = plan.run();
+		}
+		double mean = (System.nanoTime() - start) / 1e6 / iterations;
+		System.out.println(String.format("%-32s %10.3f ms/op  (%s)", name, mean, rows < 0 ? "rejected" : rows + " rows"));
+		return mean;
+	}
+
+	static void benchmarkShowtimeSearch(Ticketmaster esql, final long cityID, final String sdate, final int limit, int iterations) throws Exception {
+		final ShowtimeSearch search = esql.getShowtimeSearch();
+		esql.beginOperation(15);
+		System.out.println("City " + cityID + " on " + sdate + ", limit " + limit);
+		time("single query", iterations, new Plan(){
+			public int run() throws Exception {
+				return search.searchSingleQuery(cityID, sdate, limit).size();
+			}
+		});
+		time("parallel fan-out", iterations, new Plan(){
+			public int run() throws Exception {
+				return search.search(cityID, sdate, limit).size();
+			}
+		});
+	}
+
+	/**
+	 * Interface for the first page of a listing; a new query per run, since a
+	 * query remembers where its last page ended.
+	 */
+	interface Listing{
+		KeysetQuery create() throws SQLException;
+	}
+
+	/**
+	 * Interface for the statements of one write operation.
+	 */
+	interface Write{
+		int run(Connection conn) throws SQLException;
+	}
+
+	//a plan whose rejected statement still counts as a run, the way the
+	//operation prints the error and returns; its rows are then -1
+	static Plan rejectable(final Plan plan){
+		return new Plan(){
+			public int run() throws Exception {
+				try {
+					return plan.run();
+				}catch(SQLException e){
+					return -1;
+				}
+			}
+		};
+	}
+
+	//times the first page of a listing on the connection the operation reads from
+	static double timeListing(String name, int iterations, final Ticketmaster esql, final Listing listing) throws Exception {
+		return time(name, iterations, new Plan(){
+			public int run() throws Exception {
+				Connection conn = esql.currentConnection();
+				try {
+					return listing.create().readNextPage(conn);
+				}catch(SQLException e){
+					return listing.create().readNextPage(esql.retryConnection(conn, e));
+				}
+			}
+		});
+	}
+
+	//times a write in a transaction that is rolled back, so every run starts from the same tables
+	static double timeWrite(String name, int iterations, final Connection conn, final Write write) throws Exception {
+		return time(name, iterations, rejectable(new Plan(){
+			public int run() throws Exception {
+				try {
+					return write.run(conn);
+				}finally{
+					conn.rollback();
+				}
+			}
+		}));
+	}
+
+	private static int update(Connection conn, String sql) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			return stmt.executeUpdate(sql);
+		}finally{
+			stmt.close();
+		}
+	}
+
+	//the number of rows a query, e.g. a DELETE ... RETURNING, returned
+	private static int count(Connection conn, String sql) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery(sql);
+			int rows = 0;
+			while (rs.next()) rows++;
+			return rows;
+		}finally{
+			stmt.close();
+		}
+	}
+
+	private static long nextKey(Connection conn, String sql) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery(sql);
+			rs.next();
+			return rs.getLong(1) + 1;
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Method to time the 14 menu operations online and offline. Online they
+	 * run the SQL Ticketmaster runs: the listings fetch their first page of
+	 * KeysetQuery.DEFAULT_PAGE_SIZE rows on the connection the operation would
+	 * read from, and the writes run on a connection of their own in a
+	 * transaction that is rolled back after every run. Offline the writes are
+	 * applied to the store and journaled to the scratch journal, so repeated
+	 * runs may find less to change than the first one.
+	 *
+	 * @param esql the database
+	 * @param store an offline store loaded from the same data as the database
+	 * @param iterations number of timed runs after the warmup
+	 * @throws java.lang.Exception when a plan failed
+	 */
+	static void benchmarkOfflineStore(final Ticketmaster esql, final OfflineStore store, int iterations) throws Exception {
+		//sample arguments: a show playing in a theater, preferably one with a booked
+		//and a free seat to move the booking between, and a booking with a payment,
+		//preferably without seats. Without a booked seat operation 5 is rejected.
+		OfflineStore.Show show = null;
+		OfflineStore.ShowSeat bookedSeat = null;
+		OfflineStore.ShowSeat freeSeat = null;
+		for (OfflineStore.Show s : store.shows.values()){
+			if (store.theatersBySid.get(s.sid) == null) continue;
+			OfflineStore.ShowSeat booked = null;
+			OfflineStore.ShowSeat free = null;
+			List<OfflineStore.ShowSeat> seats = store.showSeatsBySid.get(s.sid);
+			for (OfflineStore.ShowSeat seat : seats == null ? new ArrayList<OfflineStore.ShowSeat>() : seats){
+				if (seat.bid == null){
+					free = seat;
+				}else{
+					booked = seat;
+				}
+			}
+			if (show == null || (booked != null && free != null)){
+				show = s;
+				bookedSeat = booked;
+				freeSeat = free;
+			}
+			if (bookedSeat != null && freeSeat != null) break;
+		}
+		if (show == null) throw new Exception("No show playing in a theater to benchmark with");
+		OfflineStore.Booking booking = bookedSeat != null ? store.bookings.get(bookedSeat.bid) : null;
+		for (OfflineStore.Booking b : store.bookings.values()){
+			if (booking != null) break;
+			booking = b;
+		}
+		if (booking == null) throw new Exception("No booking to benchmark with");
+		OfflineStore.Payment payment = null;
+		for (OfflineStore.Payment p : store.paymentByBid.values()){
+			payment = p;
+			if (!store.showSeatsByBid.containsKey(p.bid)) break;
+		}
+		if (payment == null) throw new Exception("No payment to benchmark with");
+
+		final OfflineStore.Theater theater = store.theatersBySid.get(show.sid).get(0);
+		final long sid = show.sid;
+		final String sttime = show.sttime.toString();
+		final String sdate = show.sdate.toString();
+		final String title = store.movies.get(show.mvid).title;
+		final String email = booking.email;
+		final long bid = booking.bid;
+		final long oldSeat = bookedSeat != null ? bookedSeat.ssid : 0;
+		final long newSeat = freeSeat != null ? freeSeat.ssid : 0;
+		final long paidBid = payment.bid;
+		final String bdatetime = "2/5/2016 4:06";
+		final String[] showing = {"Benchmark", "2020-01-01", "United States", "", "5400", "en", "", "2020-01-01", "10:00", "12:00"};
+		//a new user per run, so the inserts do not collide
+		final int[] users = {0, 0};
+
+		final Connection conn = esql.openConnection();
+		try {
+			conn.setAutoCommit(false);
+
+			System.out.println("1. Add user");
+			timeWrite("  jdbc", iterations, conn, new Write(){
+				public int run(Connection conn) throws SQLException {
+					PreparedStatement stmt = conn.prepareStatement(Ticketmaster.INSERT_USER);
+					try {
+						stmt.setString(1, "benchmark" + users[0]++ + "@example.com");
+						stmt.setString(2, "Benchmark");
+						stmt.setString(3, "Benchmark");
+						stmt.setLong(4, 5555555555L);
+						stmt.setString(5, "");
+						return stmt.executeUpdate();
+					}finally{
+						stmt.close();
+					}
+				}
+			});
+			time("  offline", iterations, rejectable(new Plan(){
+				public int run() throws Exception {
+					store.addUser("benchmark" + users[1]++ + "@example.com", "Benchmark", "Benchmark", 5555555555L, "");
+					return 1;
+				}
+			}));
+
+			System.out.println("2. Add booking for show " + sid);
+			timeWrite("  jdbc", iterations, conn, new Write(){
+				public int run(Connection conn) throws SQLException {
+					long next = nextKey(conn, Ticketmaster.NEXT_BID);
+					return update(conn, Ticketmaster.insertBooking(next, "Paid", bdatetime, "1", String.valueOf(sid), email,
+						System.currentTimeMillis() + Ticketmaster.HOLD_MILLIS));
+				}
+			});
+			time("  offline", iterations, rejectable(new Plan(){
+				public int run() throws Exception {
+					store.addBooking("Paid", bdatetime, 1, sid, email);
+					return 1;
+				}
+			}));
+
+			System.out.println("3. Add movie showing to theater " + theater.tid);
+			timeWrite("  jdbc", iterations, conn, new Write(){
+				public int run(Connection conn) throws SQLException {
+					long mvid = nextKey(conn, Ticketmaster.NEXT_MVID);
+					long next = nextKey(conn, Ticketmaster.NEXT_SID);
+					int rows = 0;
+					for (String stmt : Ticketmaster.insertMovieShowing(mvid, showing[0], showing[1], showing[2], showing[3],
+							Integer.parseInt(showing[4]), showing[5], showing[6], next, showing[7], showing[8], showing[9], theater.tid)){
+						rows += update(conn, stmt);
+					}
+					return rows;
+				}
+			});
+			time("  offline", iterations, rejectable(new Plan(){
+				public int run() throws Exception {
+					store.addMovieShowing(showing[0], showing[1], showing[2], showing[3], Integer.parseInt(showing[4]),
+						showing[5], showing[6], showing[7], showing[8], showing[9], theater.tid);
+					return 3;
+				}
+			}));
+
+			System.out.println("4. Cancel pending bookings");
+			timeWrite("  jdbc", iterations, conn, new Write(){
+				public int run(Connection conn) throws SQLException {
+					return count(conn, Ticketmaster.cancelPendingBookings());
+				}
+			});
+			time("  offline", iterations, rejectable(new Plan(){
+				public int run() throws Exception {
+					return store.cancelPendingBookings();
+				}
+			}));
+
+			System.out.println("5. Move booking " + bid + " from seat " + oldSeat + " to seat " + newSeat);
+			timeWrite("  jdbc", iterations, conn, new Write(){
+				public int run(Connection conn) throws SQLException {
+					return update(conn, Ticketmaster.changeSeatsForBooking(String.valueOf(bid), String.valueOf(oldSeat), String.valueOf(newSeat)));
+				}
+			});
+			//moves the booking back and forth, so every run is a valid move
+			final long[] seat = {oldSeat, newSeat};
+			time("  offline", iterations, rejectable(new Plan(){
+				public int run() throws Exception {
+					store.changeSeatsForBooking(bid, seat[0], seat[1]);
+					long moved = seat[0];
+					seat[0] = seat[1];
+					seat[1] = moved;
+					return 2;
+				}
+			}));
+
+			//run before 6, which leaves a cancelled booking behind offline
+			System.out.println("7. Clear cancelled bookings");
+			timeWrite("  jdbc", iterations, conn, new Write(){
+				public int run(Connection conn) throws SQLException {
+					return count(conn, Ticketmaster.clearCancelledBookings());
+				}
+			});
+			time("  offline", iterations, rejectable(new Plan(){
+				public int run() throws Exception {
+					return store.clearCancelledBookings();
+				}
+			}));
+
+			System.out.println("6. Remove payment of booking " + paidBid);
+			timeWrite("  jdbc", iterations, conn, new Write(){
+				public int run(Connection conn) throws SQLException {
+					return update(conn, Ticketmaster.removePayment(String.valueOf(paidBid)))
+						+ update(conn, Ticketmaster.cancelBooking(String.valueOf(paidBid)));
+				}
+			});
+			time("  offline", iterations, rejectable(new Plan(){
+				public int run() throws Exception {
+					return store.removePayment(paidBid) + 1;
+				}
+			}));
+
+			System.out.println("8. Remove shows on " + sdate);
+			timeWrite("  jdbc", iterations, conn, new Write(){
+				public int run(Connection conn) throws SQLException {
+					return count(conn, Ticketmaster.removeShowsOnDate(sdate));
+				}
+			});
+			time("  offline", iterations, rejectable(new Plan(){
+				public int run() throws Exception {
+					return store.removeShowsOnDate(sdate);
+				}
+			}));
+		}finally{
+			conn.close();
+		}
+
+		System.out.println("9. Theaters of cinema " + theater.cid + " playing show " + sid);
+		esql.beginOperation(9);
+		timeListing("  jdbc", iterations, esql, new Listing(){
+			public KeysetQuery create() throws SQLException {
+				return Ticketmaster.theatersPlayingShow(theater.cid, sid);
+			}
+		});
+		time("  offline", iterations, new Plan(){
+			public int run() throws Exception {
+				return store.listTheatersPlayingShow(theater.cid, sid).size();
+			}
+		});
+
+		System.out.println("10. Shows starting at " + sttime + " on " + sdate);
+		esql.beginOperation(10);
+		timeListing("  jdbc", iterations, esql, new Listing(){
+			public KeysetQuery create() throws SQLException {
+				return Ticketmaster.showsStartingOnTimeAndDate(sttime, sdate);
+			}
+		});
+		time("  offline", iterations, new Plan(){
+			public int run() throws Exception {
+				return store.listShowsStartingOnTimeAndDate(sttime, sdate).size();
+			}
+		});
+
+		System.out.println("11. Movie titles containing Love released after 2010");
+		esql.beginOperation(11);
+		timeListing("  jdbc", iterations, esql, new Listing(){
+			public KeysetQuery create() throws SQLException {
+				return Ticketmaster.movieTitlesContainingLoveReleasedAfter2010();
+			}
+		});
+		time("  offline", iterations, new Plan(){
+			public int run() throws Exception {
+				return store.listMovieTitlesContainingLoveReleasedAfter2010().size();
+			}
+		});
+
+		System.out.println("12. Users with a pending booking");
+		esql.beginOperation(12);
+		timeListing("  jdbc", iterations, esql, new Listing(){
+			public KeysetQuery create() throws SQLException {
+				return Ticketmaster.usersWithPendingBooking();
+			}
+		});
+		time("  offline", iterations, new Plan(){
+			public int run() throws Exception {
+				return store.listUsersWithPendingBooking().size();
+			}
+		});
+
+		System.out.println("13. Showings of " + title + " at cinema " + theater.cid + " on " + sdate);
+		esql.beginOperation(13);
+		timeListing("  jdbc", iterations, esql, new Listing(){
+			public KeysetQuery create() throws SQLException {
+				return Ticketmaster.movieAndShowInfoAtCinemaInDateRange(title, theater.cid, sdate, sdate);
+			}
+		});
+		time("  offline", iterations, new Plan(){
+			public int run() throws Exception {
+				return store.listMovieAndShowInfoAtCinemaInDateRange(title, theater.cid, sdate, sdate).size();
+			}
+		});
+
+		System.out.println("14. Bookings of " + email);
+		esql.beginOperation(14);
+		esql.readAs(email);
+		timeListing("  jdbc", iterations, esql, new Listing(){
+			public KeysetQuery create() throws SQLException {
+				return Ticketmaster.bookingInfoForUser(email);
+			}
+		});
+		time("  offline", iterations, new Plan(){
+			public int run() throws Exception {
+				return store.listBookingInfoForUser(email).size();
+			}
+		});
+	}
+
+	/**
+	 * The benchmark execution method
+	 *
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args){
+		boolean search = args.length == 8 && args[3].equals("search");
+		boolean offline = args.length == 5 && args[3].equals("offline");
+		if (!search && !offline){
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + Benchmark.class.getName() +
+				" <dbname> <port> <user> search <city_id> <date> <limit> <iterations>\n" +
+				"       " + "java [-classpath <classpath>] " + Benchmark.class.getName() +
+				" <dbname> <port> <user> offline <iterations>");
+			return;
+		}
+
+		Ticketmaster esql = null;
+		try {
+			Class.forName("org.postgresql.Driver");
+			esql = new Ticketmaster(args[0], args[1], args[2], "");
+			if (search){
+				benchmarkShowtimeSearch(esql, Long.parseLong(args[4]), args[5],
+					Integer.parseInt(args[6]), Integer.parseInt(args[7]));
+			}else{
+				File scratch = File.createTempFile("benchmark", ".journal");
+				scratch.deleteOnExit();
+				OfflineStore store = OfflineStore.load(new File(System.getProperty("ticketmaster.dataDir", "../data")), null, null, scratch, null);
+				benchmarkOfflineStore(esql, store, Integer.parseInt(args[4]));
+			}
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+		}finally{
+			if (esql != null) esql.cleanup();
+		}
+	}
+}
@@ -0,0 +1,486 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.zip.CRC32;
+
+
+/**
+ * This class is a read-only, memory-mapped snapshot of the reference tables
+ * (Cities, Cinemas, Theaters, CinemaSeats, Movies). Every table is stored as
+ * fixed-width records sorted by primary key, with strings kept in one shared
+ * string heap, so opening a snapshot costs one mmap and lookups are a binary
+ * search over the mapped records.
+ *
+ * File layout (big-endian):
+ *   header   magic, format version, CRC32 of everything after the header
+ *   tables   per table: DB row count, row hash and catalog version it was
+ *            built from, number of records, record width, offset of the
+ *            first record
+ *   heap     offset and length of the string heap
+ *   body     the records of each table, then the string heap
+ *
+ * Column types: J is a BIGINT (8 bytes), I an INTEGER (4 bytes), D a DATE
+ * as days since 1970-01-01 (4 bytes) and S a string as heap offset and byte
+ * length (8 bytes). NULL is Integer.MIN_VALUE for I and D and length -1 for S.
+ *
+ * Freshness is checked against CatalogVersions (see create.sql), which
+ * statement triggers bump on every change of a reference table. Only a table
+ * whose version moved is hashed to see whether its rows really changed.
+ *
+ */
+
+public class CatalogSnapshot{
+	private static final int MAGIC = 0x544D4353; // "TMCS"
+	private static final int FORMAT_VERSION = 2;
+	private static final int NULL_INT = Integer.MIN_VALUE;
+	private static final int TABLE_ENTRY_SIZE = 40;
+	//stored when the database has no CatalogVersions row for a table
+	private static final long NO_VERSION = Long.MIN_VALUE;
+
+	//the tables kept in a snapshot, in file order; the first column of each
+	//table is its BIGINT primary key
+	static final TableDef[] TABLES = {
+		new TableDef("Cities", "city_id, city_name, city_state, zip_code", "JSSI"),
+		new TableDef("Cinemas", "cid, city_id, cname, tnum", "JJSI"),
+		new TableDef("Theaters", "tid, cid, tname, tseats", "JJSJ"),
+		new TableDef("CinemaSeats", "csid, tid, sno, stype", "JJIS"),
+		new TableDef("Movies", "mvid, title, rdate, country, description, duration, lang, genre", "JSDSSISS")
+	};
+	private static final int HEADER_SIZE = 16 + 4 + TABLES.length * TABLE_ENTRY_SIZE + 16;
+
+	/**
+	 * Name, columns and column types of one snapshot table.
+	 */
+	static class TableDef{
+		final String name;
+		final String columns;
+		final String types;
+		final int[] offsets;
+		final int width;
+
+		TableDef(String name, String columns, String types){
+			this.name = name;
+			this.columns = columns;
+			this.types = types;
+			this.offsets = new int[types.length()];
+			int width = 0;
+			for (int i = 0; i < types.length(); i++){
+				offsets[i] = width;
+				width += types.charAt(i) == 'I' || types.charAt(i) == 'D' ? 4 : 8;
+			}
+			this.width = width;
+		}
+	}
+
+	/**
+	 * A view of one table inside the mapped file.
+	 */
+	public class Table{
+		final TableDef def;
+		final long dbCount;
+		final long dbHash;
+		final long dbVersion;
+		final int rows;
+		final int base;
+
+		Table(TableDef def, long dbCount, long dbHash, long dbVersion, int rows, int base){
+			this.def = def;
+			this.dbCount = dbCount;
+			this.dbHash = dbHash;
+			this.dbVersion = dbVersion;
+			this.rows = rows;
+			this.base = base;
+		}
+
+		public int rows(){
+			return rows;
+		}
+
+		/**
+		 * Method to find a record by primary key.
+		 *
+		 * @param key the primary key
+		 * @return the row number, or -1 when there is no such key
+		 */
+		public int find(long key){
+			int lo = 0;
+			int hi = rows - 1;
+			while (lo <= hi){
+				int mid = (lo + hi) >>> 1;
+				long k = getLong(mid, 0);
+				if (k < key) lo = mid + 1;
+				else if (k > key) hi = mid - 1;
+				else return mid;
+			}
+			return -1;
+		}
+
+		public long getLong(int row, int col){
+			return buffer.getLong(position(row, col));
+		}
+
+		public Integer getInt(int row, int col){
+			int value = buffer.getInt(position(row, col));
+			return value == NULL_INT ? null : value;
+		}
+
+		public LocalDate getDate(int row, int col){
+			int value = buffer.getInt(position(row, col));
+			return value == NULL_INT ? null : LocalDate.ofEpochDay(value);
+		}
+
+		public String getString(int row, int col){
+			int pos = position(row, col);
+			int length = buffer.getInt(pos + 4);
+			if (length < 0) return null;
+			byte[] bytes = new byte[length];
+			ByteBuffer heap = buffer.duplicate();
+			heap.position(heapOffset + buffer.getInt(pos));
+			heap.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		//reads a whole record back, used when a table is carried over on refresh
+		Object[] getRow(int row){
+			Object[] values = new Object[def.types.length()];
+			for (int col = 0; col < values.length; col++){
+				switch (def.types.charAt(col)){
+					case 'J': values[col] = getLong(row, col); break;
+					case 'I': values[col] = getInt(row, col); break;
+					case 'D': values[col] = getDate(row, col); break;
+					case 'S': values[col] = getString(row, col); break;
+				}
+			}
+			return values;
+		}
+
+		private int position(int row, int col){
+			return base + row * def.width + def.offsets[col];
+		}
+	}
+
+	private final MappedByteBuffer buffer;
+	private final int heapOffset;
+	private final Map<String, Table> tables = new LinkedHashMap<String, Table>();
+
+	private CatalogSnapshot(MappedByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION){
+			throw new IOException("Not a catalog snapshot of version " + FORMAT_VERSION);
+		}
+		CRC32 crc = new CRC32();
+		ByteBuffer body = buffer.duplicate();
+		body.position(HEADER_SIZE);
+		crc.update(body);
+		if (crc.getValue() != buffer.getLong(8)){
+			throw new IOException("Catalog snapshot checksum mismatch");
+		}
+
+		TableDef[] defs = TABLES;
+		if (buffer.getInt(16) != defs.length){
+			throw new IOException("Catalog snapshot has the wrong number of tables");
+		}
+		int pos = 20;
+		for (TableDef def : defs){
+			tables.put(def.name, new Table(def, buffer.getLong(pos), buffer.getLong(pos + 8), buffer.getLong(pos + 16),
+				buffer.getInt(pos + 24), (int) buffer.getLong(pos + 32)));
+			if (buffer.getInt(pos + 28) != def.width){
+				throw new IOException("Catalog snapshot record width of " + def.name + " does not match");
+			}
+			pos += TABLE_ENTRY_SIZE;
+		}
+		this.heapOffset = (int) buffer.getLong(pos);
+	}
+
+	/**
+	 * Method to get one table of the snapshot.
+	 *
+	 * @param name the table name, e.g. "Cinemas"
+	 * @return the table, or null when the snapshot does not keep it
+	 */
+	public Table table(String name){
+		return tables.get(name);
+	}
+
+	/**
+	 * Method to check the snapshot against the catalog versions of the
+	 * database, see versions.
+	 *
+	 * @param versions lower case table name to version
+	 * @return false when a table's version moved since the snapshot was built
+	 */
+	public boolean isCurrent(Map<String, Long> versions){
+		for (Table table : tables.values()){
+			Long version = versions.get(table.def.name.toLowerCase());
+			if (version == null || version != table.dbVersion) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Method to map an existing snapshot file. The header and checksum are
+	 * verified; whether the contents still match the database is not.
+	 *
+	 * @param file the snapshot file
+	 * @return the opened snapshot
+	 * @throws java.io.IOException when the file is missing or corrupt
+	 */
+	public static CatalogSnapshot open(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			return new CatalogSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}finally{
+			// the mapping stays valid after the channel is closed
+			channel.close();
+		}
+	}
+
+	/**
+	 * Method to open a snapshot at startup. A valid snapshot whose tables all
+	 * have the database's catalog version is used as is, which costs one read
+	 * of CatalogVersions. A table whose version moved is hashed; when its rows
+	 * changed it is reloaded, and either way the file is rewritten with the
+	 * new versions. A missing or corrupt file is rebuilt from scratch.
+	 *
+	 * @param esql the database the snapshot is checked against
+	 * @param file the snapshot file
+	 * @return an up-to-date snapshot
+	 * @throws java.sql.SQLException when the database could not be read
+	 * @throws java.io.IOException when the snapshot could not be written
+	 */
+	public static CatalogSnapshot openOrBuild(Ticketmaster esql, File file) throws SQLException, IOException {
+		CatalogSnapshot old = null;
+		if (file.exists()){
+			try {
+				old = open(file);
+			}catch(IOException e){
+				System.out.println("Rebuilding catalog snapshot: " + e.getMessage());
+			}
+		}
+
+		Map<String, Long> versions = versions(esql);
+		if (versions.isEmpty()){
+			// an older schema without versions; every table is hashed instead
+			System.out.println("Catalog versions unavailable, checking the catalog snapshot by content");
+		}
+		Map<String, long[]> fingerprints = new HashMap<String, long[]>();
+		boolean stale = old == null;
+		for (TableDef def : TABLES){
+			Table table = old != null ? old.table(def.name) : null;
+			Long stored = versions.get(def.name.toLowerCase());
+			long version = stored != null ? stored : NO_VERSION;
+			if (table != null && version != NO_VERSION && table.dbVersion == version){
+				fingerprints.put(def.name, new long[] {table.dbCount, table.dbHash, version});
+				continue;
+			}
+			long[] fp = fingerprint(esql, def, version);
+			fingerprints.put(def.name, fp);
+			if (table == null || fp[0] != table.dbCount || fp[1] != table.dbHash){
+				if (table != null) System.out.println("Catalog snapshot table " + def.name + " is out of date");
+				stale = true;
+			}else if (version != NO_VERSION){
+				// same rows under a new version; store it so the next start skips the hash
+				stale = true;
+			}
+		}
+		if (!stale){
+			return old;
+		}
+		write(esql, file, old, fingerprints);
+		return open(file);
+	}
+
+	/**
+	 * Method to read the catalog version of every reference table.
+	 *
+	 * @param esql the database to read
+	 * @return lower case table name to version, empty when the database has no CatalogVersions
+	 */
+	static Map<String, Long> versions(Ticketmaster esql){
+		Map<String, Long> result = new HashMap<String, Long>();
+		try {
+			for (List<String> row : esql.executeQueryAndReturnResult("SELECT tname, version FROM CatalogVersions")){
+				result.put(row.get(0), Long.parseLong(row.get(1)));
+			}
+		}catch(SQLException e){
+			// an older schema without CatalogVersions
+		}
+		return result;
+	}
+
+	/**
+	 * Method to fingerprint a reference table with a row count and a sum of
+	 * row hashes. This scans the whole table, so it only runs for tables
+	 * whose catalog version moved.
+	 *
+	 * @param esql the database to read
+	 * @param def the table
+	 * @param version the catalog version the fingerprint is taken at
+	 * @return {row count, row hash, version}
+	 * @throws java.sql.SQLException when the database could not be read
+	 */
+	static long[] fingerprint(Ticketmaster esql, TableDef def, long version) throws SQLException {
+		List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(
+			"SELECT count(*), coalesce(sum(hashtext(X::text)::bigint), 0) FROM %s X", def.name));
+		return new long[] {Long.parseLong(rows.get(0).get(0)), Long.parseLong(rows.get(0).get(1)), version};
+	}
+
+	//writes a new snapshot, carrying over tables of old whose fingerprint still
+	//matches and loading the rest from the database
+	private static void write(Ticketmaster esql, File file, CatalogSnapshot old, Map<String, long[]> fingerprints) throws SQLException, IOException {
+		TableDef[] defs = TABLES;
+		List<List<Object[]>> contents = new ArrayList<List<Object[]>>();
+		for (TableDef def : defs){
+			long[] fp = fingerprints.get(def.name);
+			Table previous = old != null ? old.table(def.name) : null;
+			List<Object[]> rows = new ArrayList<Object[]>();
+			if (previous != null && previous.dbCount == fp[0] && previous.dbHash == fp[1]){
+				for (int row = 0; row < previous.rows; row++){
+					rows.add(previous.getRow(row));
+				}
+			}else{
+				rows = load(esql, def);
+			}
+			contents.add(rows);
+		}
+
+		//lay out the records, collecting strings into the heap as they come
+		ByteArrayHeap heap = new ByteArrayHeap();
+		int bodySize = 0;
+		for (int t = 0; t < defs.length; t++){
+			bodySize += contents.get(t).size() * defs[t].width;
+		}
+		ByteBuffer records = ByteBuffer.allocate(bodySize);
+		int[] offsets = new int[defs.length];
+		for (int t = 0; t < defs.length; t++){
+			TableDef def = defs[t];
+			offsets[t] = HEADER_SIZE + records.position();
+			for (Object[] row : contents.get(t)){
+				for (int col = 0; col < row.length; col++){
+					Object value = row[col];
+					switch (def.types.charAt(col)){
+						case 'J': records.putLong((Long) value); break;
+						case 'I': records.putInt(value == null ? NULL_INT : (Integer) value); break;
+						case 'D': records.putInt(value == null ? NULL_INT : (int) ((LocalDate) value).toEpochDay()); break;
+						case 'S':
+							if (value == null){
+								records.putInt(0);
+								records.putInt(-1);
+							}else{
+								byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+								records.putInt(heap.add(bytes));
+								records.putInt(bytes.length);
+							}
+							break;
+					}
+				}
+			}
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(FORMAT_VERSION);
+		header.putLong(0); // checksum, filled in below
+		header.putInt(defs.length);
+		for (int t = 0; t < defs.length; t++){
+			long[] fp = fingerprints.get(defs[t].name);
+			header.putLong(fp[0]);
+			header.putLong(fp[1]);
+			header.putLong(fp[2]);
+			header.putInt(contents.get(t).size());
+			header.putInt(defs[t].width);
+			header.putLong(offsets[t]);
+		}
+		header.putLong(HEADER_SIZE + bodySize);
+		header.putLong(heap.size());
+
+		records.flip();
+		ByteBuffer strings = ByteBuffer.wrap(heap.bytes(), 0, heap.size());
+		CRC32 crc = new CRC32();
+		crc.update(records.duplicate());
+		crc.update(strings.duplicate());
+		header.putLong(8, crc.getValue());
+		header.flip();
+
+		//write next to the old file and swap, so readers never see a torn file
+		Path tmp = new File(file.getPath() + ".tmp").toPath();
+		FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer[] parts = {header, records, strings};
+			long remaining = header.remaining() + records.remaining() + strings.remaining();
+			while (remaining > 0){
+				remaining -= channel.write(parts);
+			}
+			channel.force(true);
+		}finally{
+			channel.close();
+		}
+		Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	//reads a whole table from the database ordered by primary key
+	private static List<Object[]> load(Ticketmaster esql, TableDef def) throws SQLException {
+		String[] columns = def.columns.split(", ");
+		List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(
+			"SELECT %s FROM %s ORDER BY %s", def.columns, def.name, columns[0]));
+		List<Object[]> result = new ArrayList<Object[]>(rows.size());
+		for (List<String> row : rows){
+			Object[] values = new Object[columns.length];
+			for (int col = 0; col < columns.length; col++){
+				String value = row.get(col);
+				if (value == null) continue;
+				switch (def.types.charAt(col)){
+					case 'J': values[col] = Long.parseLong(value); break;
+					case 'I': values[col] = Integer.parseInt(value.trim()); break;
+					case 'D': values[col] = LocalDate.parse(value); break;
+					case 'S': values[col] = value; break;
+				}
+			}
+			result.add(values);
+		}
+		return result;
+	}
+
+	/**
+	 * Growable byte array backing the string heap while a snapshot is written.
+	 */
+	private static class ByteArrayHeap{
+		private byte[] bytes = new byte[4096];
+		private int size = 0;
+
+		int add(byte[] value){
+			if (size + value.length > bytes.length){
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + value.length));
+			}
+			System.arraycopy(value, 0, bytes, size, value.length);
+			size += value.length;
+			return size - value.length;
+		}
+
+		byte[] bytes(){
+			return bytes;
+		}
+
+		int size(){
+			return size;
+		}
+	}
+}
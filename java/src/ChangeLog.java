@@ -0,0 +1,525 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+
+/**
+ * This class is an append-only log of booking changes on local disk, so that
+ * downstream jobs can read what changed instead of rescanning Bookings,
+ * Payments and ShowSeats.
+ *
+ * The log is a directory of fixed-size segments, each memory-mapped and named
+ * after the log offset of its first byte. An offset is the byte position of a
+ * record in the whole log, so it stays valid across segments. A record is
+ *
+ *   int length of the body; 0 means not written yet, -1 that the log
+ *                           continues in the next segment
+ *   int CRC32 of the body
+ *   body: byte type, long time in ms, long bid, long x, long y, string text
+ *
+ * where x, y and text depend on the type (see the constants). The length is
+ * written last, so a reader never sees a half-written record.
+ *
+ * Appends are made durable in groups: a flusher thread forces the mapped
+ * segment every few milliseconds, and awaitDurable waits for the flush that
+ * covers a given record.
+ *
+ * Every Ticketmaster process on a host appends to the same log. An append
+ * holds a lock on the file "lock" in the directory, first moves past the
+ * records other writers appended since its last one, and then writes its own
+ * record at the end, so no writer is ever turned away and the log stays one
+ * stream for consumers. A process opens a log directory once. Readers take no
+ * lock.
+ *
+ */
+
+public class ChangeLog{
+	//booking added; x = sid, y = seats, text = status + " " + email
+	public static final byte BOOKING_ADDED = 1;
+	//booking moved from seat x to seat y (ssid)
+	public static final byte SEATS_CHANGED = 2;
+	//payment of the booking removed
+	public static final byte PAYMENT_REMOVED = 3;
+	//booking status set to Cancelled
+	public static final byte BOOKING_CANCELLED = 4;
+	//booking deleted
+	public static final byte BOOKING_DELETED = 5;
+	//show x deleted, together with its bookings; bid is 0
+	public static final byte SHOW_REMOVED = 6;
+	//a bid or show below 0 is one made in offline kiosk mode; when the journal
+	//is synced its changes are logged again under the real key
+
+	private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+	private static final int RECORD_HEADER = 8;
+	private static final int END_OF_SEGMENT = -1;
+	private static final long FLUSH_INTERVAL_MS = 5;
+	private static final String SUFFIX = ".seg";
+	private static final String LOCK_FILE = "lock";
+	//log directories open for appending in this process; file locks do not
+	//exclude two writers of the same process from each other
+	private static final Set<String> OPEN = new HashSet<String>();
+
+	private final File dir;
+	//LOCK_FILE, locked for the length of each append
+	private final FileChannel lockChannel;
+	private MappedByteBuffer segment;
+	private long segmentBase;
+	//log offset of the next record
+	private long end;
+	//every record before this offset has been forced to disk
+	private long durable;
+	private boolean closed = false;
+	private final Thread flusher;
+
+	/**
+	 * One change read back from the log.
+	 */
+	public static class Event{
+		public final long offset;
+		public final byte type;
+		public final long time;
+		public final long bid;
+		public final long x;
+		public final long y;
+		public final String text;
+
+		Event(long offset, ByteBuffer body){
+			this.offset = offset;
+			this.type = body.get();
+			this.time = body.getLong();
+			this.bid = body.getLong();
+			this.x = body.getLong();
+			this.y = body.getLong();
+			byte[] bytes = new byte[body.getShort() & 0xFFFF];
+			body.get(bytes);
+			this.text = new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		public String toString(){
+			String name;
+			switch (type){
+				case BOOKING_ADDED: name = "BOOKING_ADDED"; break;
+				case SEATS_CHANGED: name = "SEATS_CHANGED"; break;
+				case PAYMENT_REMOVED: name = "PAYMENT_REMOVED"; break;
+				case BOOKING_CANCELLED: name = "BOOKING_CANCELLED"; break;
+				case BOOKING_DELETED: name = "BOOKING_DELETED"; break;
+				case SHOW_REMOVED: name = "SHOW_REMOVED"; break;
+				default: name = "TYPE_" + type;
+			}
+			return offset + "\t" + new java.sql.Timestamp(time) + "\t" + name + "\t" + bid + "\t" + x + "\t" + y + "\t" + text;
+		}
+	}
+
+	/**
+	 * Method to open a log for appending, creating the directory if needed.
+	 * The end of the log is found by scanning the last segment for the first
+	 * record that is missing or fails its checksum.
+	 *
+	 * @param dir the log directory
+	 * @throws java.io.IOException when the log could not be opened, or this
+	 *         process has it open already
+	 */
+	public ChangeLog(File dir) throws IOException {
+		this.dir = dir;
+		Files.createDirectories(dir.toPath());
+		synchronized (OPEN){
+			if (!OPEN.add(dir.getCanonicalPath())) throw new IOException("Change log " + dir + " is already open in this process");
+		}
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(new File(dir, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			FileLock lock = channel.lock();
+			try {
+				long[] bases = segments(dir);
+				this.segmentBase = bases.length == 0 ? 0 : bases[bases.length - 1];
+				this.segment = map(segmentFile(dir, segmentBase), FileChannel.MapMode.READ_WRITE);
+				this.end = segmentBase;
+				catchUp();
+			}finally{
+				lock.release();
+			}
+		}catch(IOException e){
+			if (channel != null) channel.close();
+			synchronized (OPEN){
+				OPEN.remove(dir.getCanonicalPath());
+			}
+			throw e;
+		}
+		this.lockChannel = channel;
+		this.durable = this.end;
+
+		this.flusher = new Thread(new Runnable(){
+			public void run(){
+				flushLoop();
+			}
+		}, "changelog-flush");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	/**
+	 * Method to append a change. The record is visible to readers at once but
+	 * only durable after the next group flush, see awaitDurable.
+	 *
+	 * @param type one of the event type constants
+	 * @param bid the booking the change is about
+	 * @param x first type-specific value
+	 * @param y second type-specific value
+	 * @param text type-specific text, may be empty
+	 * @return the offset of the record
+	 * @throws java.io.IOException when a new segment could not be created
+	 */
+	public synchronized long append(byte type, long bid, long x, long y, String text) throws IOException {
+		if (closed) throw new IOException("Change log is closed");
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > 0xFFFF) bytes = Arrays.copyOf(bytes, 0xFFFF);
+		int length = 1 + 8 + 8 + 8 + 8 + 2 + bytes.length;
+
+		FileLock lock = lockChannel.lock();
+		try {
+			catchUp();
+			int position = (int) (end - segmentBase);
+			if (position + RECORD_HEADER + length + RECORD_HEADER > SEGMENT_SIZE){
+				roll(position);
+				position = 0;
+			}
+
+			ByteBuffer body = segment.duplicate();
+			body.position(position + RECORD_HEADER);
+			body.put(type).putLong(System.currentTimeMillis()).putLong(bid).putLong(x).putLong(y);
+			body.putShort((short) bytes.length).put(bytes);
+			CRC32 crc = new CRC32();
+			ByteBuffer written = segment.duplicate();
+			written.position(position + RECORD_HEADER);
+			written.limit(position + RECORD_HEADER + length);
+			crc.update(written);
+			segment.putInt(position + 4, (int) crc.getValue());
+			segment.putInt(position, length);
+
+			long offset = end;
+			end += RECORD_HEADER + length;
+			return offset;
+		}finally{
+			lock.release();
+		}
+	}
+
+	/**
+	 * Method to wait until a record is on disk.
+	 *
+	 * @param offset the offset returned by append
+	 * @throws java.io.IOException when the log was closed before the record was flushed
+	 */
+	public synchronized void awaitDurable(long offset) throws IOException {
+		while (durable <= offset){
+			if (closed) throw new IOException("Change log closed before offset " + offset + " was flushed");
+			try {
+				wait();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the change log flush");
+			}
+		}
+	}
+
+	/**
+	 * Method to flush everything appended and stop the flusher thread.
+	 */
+	public void close(){
+		synchronized (this){
+			if (closed) return;
+			segment.force();
+			durable = end;
+			closed = true;
+			notifyAll();
+		}
+		flusher.interrupt();
+		try {
+			lockChannel.close();
+		}catch(IOException e){
+			// ignored.
+		}
+		synchronized (OPEN){
+			try {
+				OPEN.remove(dir.getCanonicalPath());
+			}catch(IOException e){
+				// ignored.
+			}
+		}
+	}
+
+	//forces the current segment whenever something new was appended
+	private void flushLoop(){
+		while (true){
+			try {
+				Thread.sleep(FLUSH_INTERVAL_MS);
+			}catch(InterruptedException e){
+				return;
+			}
+			MappedByteBuffer toForce;
+			long upTo;
+			synchronized (this){
+				if (closed) return;
+				if (durable == end) continue;
+				toForce = segment;
+				upTo = end;
+			}
+			// forcing outside the lock lets appends continue meanwhile
+			toForce.force();
+			synchronized (this){
+				if (upTo > durable) durable = upTo;
+				notifyAll();
+			}
+		}
+	}
+
+	//moves end past the records other writers appended, following them into
+	//later segments; called with the file lock held. A record that fails its
+	//checksum is torn, left by a writer that crashed, and is cleared so
+	//readers and the next append start clean.
+	private void catchUp() throws IOException {
+		while (true){
+			int position = (int) (end - segmentBase);
+			if (position + RECORD_HEADER > SEGMENT_SIZE) return;
+			int length = segment.getInt(position);
+			if (length == END_OF_SEGMENT){
+				// our own records in the finished segment go to disk before we leave it
+				segment.force();
+				durable = end;
+				notifyAll();
+				segmentBase = end;
+				segment = map(segmentFile(dir, segmentBase), FileChannel.MapMode.READ_WRITE);
+				continue;
+			}
+			if (length == 0) return;
+			if (length < 0 || position + RECORD_HEADER + length > SEGMENT_SIZE || !checksumMatches(segment, position, length)){
+				segment.putInt(position, 0);
+				return;
+			}
+			end += RECORD_HEADER + length;
+		}
+	}
+
+	//ends the current segment and starts the next one at the current end
+	private void roll(int position) throws IOException {
+		segment.putInt(position, END_OF_SEGMENT);
+		segment.force();
+		durable = end;
+		notifyAll();
+		segmentBase = end;
+		segment = map(segmentFile(dir, segmentBase), FileChannel.MapMode.READ_WRITE);
+	}
+
+	/**
+	 * This class reads the log in order, from an offset kept per consumer in
+	 * consumers/NAME.offset under the log directory. poll hands out changes
+	 * and commit stores how far the consumer got, so a restarted consumer
+	 * continues where it left off.
+	 */
+	public static class Reader{
+		private final File dir;
+		private final File offsetFile;
+		private MappedByteBuffer segment = null;
+		private long segmentBase = -1;
+		private long position;
+
+		/**
+		 * Method to open a reader for a consumer.
+		 *
+		 * @param dir the log directory
+		 * @param consumer the consumer name, or null for a reader that does not keep offsets
+		 * @throws java.io.IOException when the stored offset could not be read
+		 */
+		public Reader(File dir, String consumer) throws IOException {
+			this.dir = dir;
+			this.offsetFile = consumer == null ? null : new File(new File(dir, "consumers"), consumer + ".offset");
+			long start = 0;
+			if (offsetFile != null && offsetFile.exists()){
+				start = Long.parseLong(new String(Files.readAllBytes(offsetFile.toPath()), StandardCharsets.UTF_8).trim());
+			}
+			seek(start);
+		}
+
+		/**
+		 * Method to move the reader. An offset before the oldest segment moves
+		 * to the start of the oldest segment.
+		 *
+		 * @param offset a record offset, or 0 for the start of the log
+		 */
+		public void seek(long offset){
+			long[] bases = segments(dir);
+			this.position = bases.length > 0 ? Math.max(offset, bases[0]) : offset;
+			this.segment = null;
+			this.segmentBase = -1;
+		}
+
+		/**
+		 * Method to get the offset of the next change poll returns.
+		 *
+		 * @return the reader position
+		 */
+		public long position(){
+			return position;
+		}
+
+		/**
+		 * Method to read the next changes.
+		 *
+		 * @param max the maximum number of changes to return
+		 * @return the changes after the reader position, empty at the end of the log
+		 * @throws java.io.IOException when a segment could not be mapped
+		 */
+		public List<Event> poll(int max) throws IOException {
+			List<Event> events = new ArrayList<Event>();
+			while (events.size() < max){
+				if (segment == null && !openSegment()) break;
+				int at = (int) (position - segmentBase);
+				if (at + RECORD_HEADER > SEGMENT_SIZE) break;
+				int length = segment.getInt(at);
+				if (length == END_OF_SEGMENT){
+					segment = null;
+					segmentBase = -1;
+					continue;
+				}
+				if (length <= 0 || !checksumMatches(segment, at, length)) break;
+				ByteBuffer body = segment.duplicate();
+				body.position(at + RECORD_HEADER);
+				body.limit(at + RECORD_HEADER + length);
+				events.add(new Event(position, body));
+				position += RECORD_HEADER + length;
+			}
+			return events;
+		}
+
+		/**
+		 * Method to store the reader position as the consumer offset.
+		 *
+		 * @throws java.io.IOException when the offset could not be written
+		 */
+		public void commit() throws IOException {
+			if (offsetFile == null) return;
+			Path parent = offsetFile.getParentFile().toPath();
+			Files.createDirectories(parent);
+			Path tmp = new File(offsetFile.getPath() + ".tmp").toPath();
+			// the new offset is on disk before the rename, and the rename before commit returns,
+			// so a crash leaves either the old offset or the new one
+			FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				channel.write(ByteBuffer.wrap(String.valueOf(position).getBytes(StandardCharsets.UTF_8)));
+				channel.force(true);
+			}finally{
+				channel.close();
+			}
+			Files.move(tmp, offsetFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			FileChannel directory = FileChannel.open(parent, StandardOpenOption.READ);
+			try {
+				directory.force(true);
+			}finally{
+				directory.close();
+			}
+		}
+
+		//maps the segment holding the reader position, if it exists yet
+		private boolean openSegment() throws IOException {
+			long[] bases = segments(dir);
+			for (int i = bases.length - 1; i >= 0; i--){
+				if (bases[i] <= position){
+					segmentBase = bases[i];
+					segment = map(segmentFile(dir, segmentBase), FileChannel.MapMode.READ_ONLY);
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * The replay tool: prints the changes of a log from an offset, or from
+	 * where a consumer left off, to the end of the log.
+	 *
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args){
+		if (args.length < 1 || args.length > 3){
+			System.err.println(
+				"Usage: " + "java [-classpath <classpath>] " + ChangeLog.class.getName() +
+				" <log dir> [<from offset> | --consumer <name>]");
+			return;
+		}
+		try {
+			File dir = new File(args[0]);
+			boolean asConsumer = args.length == 3 && args[1].equals("--consumer");
+			Reader reader = new Reader(dir, asConsumer ? args[2] : null);
+			if (args.length == 2) reader.seek(Long.parseLong(args[1]));
+			System.out.println("offset\ttime\ttype\tbid\tx\ty\ttext\t");
+			List<Event> events;
+			int count = 0;
+			while (!(events = reader.poll(1024)).isEmpty()){
+				for (Event event : events){
+					System.out.println(event);
+				}
+				count += events.size();
+			}
+			if (asConsumer) reader.commit();
+			System.out.println("total amount of changes: " + count + ", next offset: " + reader.position());
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+		}
+	}
+
+	private static boolean checksumMatches(ByteBuffer segment, int position, int length){
+		CRC32 crc = new CRC32();
+		ByteBuffer body = segment.duplicate();
+		body.position(position + RECORD_HEADER);
+		body.limit(position + RECORD_HEADER + length);
+		crc.update(body);
+		return (int) crc.getValue() == segment.getInt(position + 4);
+	}
+
+	//segment bases in ascending order
+	private static long[] segments(File dir){
+		String[] names = dir.list();
+		if (names == null) return new long[0];
+		List<Long> bases = new ArrayList<Long>();
+		for (String name : names){
+			if (name.endsWith(SUFFIX)) bases.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+		}
+		Collections.sort(bases);
+		long[] result = new long[bases.size()];
+		for (int i = 0; i < result.length; i++) result[i] = bases.get(i);
+		return result;
+	}
+
+	private static File segmentFile(File dir, long base){
+		return new File(dir, String.format("%020d%s", base, SUFFIX));
+	}
+
+	private static MappedByteBuffer map(File file, FileChannel.MapMode mode) throws IOException {
+		FileChannel channel = mode == FileChannel.MapMode.READ_ONLY
+			? FileChannel.open(file.toPath(), StandardOpenOption.READ)
+			: FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		try {
+			// read-only maps are made at the full segment size too; the writer creates files at that size
+			return channel.map(mode, 0, SEGMENT_SIZE);
+		}finally{
+			channel.close();
+		}
+	}
+}
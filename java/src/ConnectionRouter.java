@@ -0,0 +1,315 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * This class routes reads to read-only streaming replicas and writes to the
+ * primary. Replicas are picked round-robin; a replica that is down or more
+ * than maxLagBytes of WAL behind the primary is skipped, and when no replica
+ * qualifies the read goes to the primary.
+ *
+ * With read-your-writes enabled, recordWrite remembers the primary WAL
+ * position after a user's own write, and that user's reads only go to a
+ * replica that has replayed at least that far.
+ *
+ */
+
+public class ConnectionRouter{
+	//how long a replica health check is trusted before it is repeated
+	static final long HEALTH_CHECK_INTERVAL_MS = 1000;
+	//how long a read-your-writes pin is kept at most, even if a replica never catches up
+	private static final long PIN_MILLIS = 60 * 1000;
+
+	private final String _primaryUrl;
+	private final Connection _primary;
+	private final String _user;
+	private final String _passwd;
+	private final List<Replica> _replicas = new ArrayList<Replica>();
+	private final AtomicInteger _next = new AtomicInteger();
+	private final boolean _readYourWrites;
+	private final long _maxLagBytes;
+	//user -> primary WAL position right after that user's last write
+	private final Map<String, Pin> _pinned = new ConcurrentHashMap<String, Pin>();
+
+	/**
+	 * One read-only replica and the result of its last health check.
+	 */
+	private static class Replica{
+		final String url;
+		Connection connection = null;
+		long checkedAt = 0;
+		boolean healthy = false;
+		long replayLsn = 0;
+
+		Replica(String url){
+			this.url = url;
+		}
+	}
+
+	/**
+	 * The primary WAL position a user's reads must see, and when it was taken.
+	 */
+	private static class Pin{
+		final long lsn;
+		final long at;
+
+		Pin(long lsn, long at){
+			this.lsn = lsn;
+			this.at = at;
+		}
+	}
+
+	public ConnectionRouter(String primaryUrl, Connection primary, List<String> replicaUrls,
+			String user, String passwd, boolean readYourWrites, long maxLagBytes){
+		this._primaryUrl = primaryUrl;
+		this._primary = primary;
+		this._user = user;
+		this._passwd = passwd;
+		this._readYourWrites = readYourWrites;
+		this._maxLagBytes = maxLagBytes;
+		for (String url : replicaUrls){
+			this._replicas.add(new Replica(url));
+		}
+	}
+
+	/**
+	 * Method to get the connection for an operation that writes.
+	 *
+	 * @return the primary connection
+	 */
+	public Connection forWrite(){
+		return _primary;
+	}
+
+	/**
+	 * Method to get a connection for a read that is not tied to a user.
+	 *
+	 * @return a healthy replica connection, or the primary if there is none
+	 */
+	public Connection forRead(){
+		return forRead(null);
+	}
+
+	/**
+	 * Method to get a connection for a read made on behalf of a user. If the
+	 * user is pinned by an earlier write, only replicas that have replayed
+	 * that write qualify.
+	 *
+	 * @param user the user the read is made for, or null
+	 * @return a qualifying replica connection, or the primary if there is none
+	 */
+	public Connection forRead(String user){
+		Replica replica = pickReplica(user);
+		return replica != null ? replica.connection : _primary;
+	}
+
+	/**
+	 * Method to open a new connection for reads, to a healthy replica when
+	 * there is one and to the primary otherwise. The caller owns the returned
+	 * connection and must close it.
+	 *
+	 * @return a new connection
+	 * @throws java.sql.SQLException when no connection can be opened
+	 */
+	public Connection openReadConnection() throws SQLException {
+		Replica replica = pickReplica(null);
+		if (replica != null){
+			try {
+				Connection conn = DriverManager.getConnection(replica.url, _user, _passwd);
+				conn.setReadOnly(true);
+				return conn;
+			}catch(SQLException e){
+				markDown(replica);
+			}
+		}
+		return DriverManager.getConnection(_primaryUrl, _user, _passwd);
+	}
+
+	/**
+	 * Method to report that a routed read failed. When the failure is a
+	 * connection error (SQLSTATE class 08) on a replica connection, the
+	 * replica is marked down so later reads skip it.
+	 *
+	 * @param conn the connection the read ran on
+	 * @param e the error of the read
+	 * @return true if the read should be run again on the primary
+	 */
+	public boolean readFailed(Connection conn, SQLException e){
+		String state = e.getSQLState();
+		if (state == null || !state.startsWith("08")) return false;
+		for (Replica replica : _replicas){
+			synchronized (replica){
+				if (replica.connection == conn){
+					markDown(replica);
+					replica.checkedAt = System.currentTimeMillis();
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Method to check that a connection from openReadConnection may still
+	 * serve reads. A replica may while it is up and at most maxLagBytes behind
+	 * the primary. The primary, which openReadConnection falls back to, may
+	 * only while no replica qualifies, so reads move back to a replica once
+	 * one has recovered.
+	 *
+	 * @param conn a connection opened by openReadConnection
+	 * @return false if the connection should be closed and replaced
+	 */
+	public boolean isReadConnectionUsable(Connection conn){
+		try {
+			if (conn.isClosed()) return false;
+			String replay = replayLsn(conn);
+			if (replay == null) return pickReplica(null) == null;
+			return primaryLsn() - parseLsn(replay) <= _maxLagBytes;
+		}catch(SQLException e){
+			return false;
+		}
+	}
+
+	/**
+	 * Method to record that a user has just written through the primary, so
+	 * that the user's following reads see the write. Does nothing unless
+	 * read-your-writes is enabled and there are replicas.
+	 *
+	 * @param user the user who wrote
+	 */
+	public void recordWrite(String user){
+		if (!_readYourWrites || user == null || _replicas.isEmpty()) return;
+		try {
+			_pinned.put(user, new Pin(primaryLsn(), System.currentTimeMillis()));
+		}catch(SQLException e){
+			// without a position the user's reads can not be pinned; fall back to replicas
+		}
+	}
+
+	/**
+	 * Method to close every replica connection. The primary is owned by the
+	 * caller and left open.
+	 */
+	public void close(){
+		for (Replica replica : _replicas){
+			markDown(replica);
+		}
+	}
+
+	//round-robin over the replicas, skipping those that are down, lagging or
+	//behind the user's last write
+	private Replica pickReplica(String user){
+		int n = _replicas.size();
+		if (n == 0) return null;
+		Pin pinned = user != null ? _pinned.get(user) : null;
+		Long pin = pinned != null ? pinned.lsn : null;
+		int start = (_next.getAndIncrement() & Integer.MAX_VALUE) % n;
+		for (int i = 0; i < n; i++){
+			Replica replica = _replicas.get((start + i) % n);
+			synchronized (replica){
+				if (!checkHealth(replica, pin != null && replica.replayLsn < pin)) continue;
+				if (pin != null && replica.replayLsn < pin) continue;
+				return replica;
+			}
+		}
+		return null;
+	}
+
+	//drops the pins every replica has replayed past, and pins older than PIN_MILLIS
+	private void prunePins(){
+		if (_pinned.isEmpty()) return;
+		long replayed = Long.MAX_VALUE;
+		for (Replica replica : _replicas){
+			replayed = Math.min(replayed, replica.replayLsn);
+		}
+		long expired = System.currentTimeMillis() - PIN_MILLIS;
+		Iterator<Pin> it = _pinned.values().iterator();
+		while (it.hasNext()){
+			Pin pin = it.next();
+			if (pin.lsn <= replayed || pin.at < expired) it.remove();
+		}
+	}
+
+	//refreshes the health of a replica when the last check is stale or forced
+	private boolean checkHealth(Replica replica, boolean force){
+		long now = System.currentTimeMillis();
+		if (!force && now - replica.checkedAt < HEALTH_CHECK_INTERVAL_MS){
+			return replica.healthy;
+		}
+		replica.checkedAt = now;
+		try {
+			if (replica.connection == null || replica.connection.isClosed()){
+				replica.connection = DriverManager.getConnection(replica.url, _user, _passwd);
+				replica.connection.setReadOnly(true);
+			}
+			String replay = replayLsn(replica.connection);
+			if (replay == null){
+				// not in recovery, so not a streaming replica
+				replica.healthy = false;
+				return false;
+			}
+			replica.replayLsn = parseLsn(replay);
+			replica.healthy = primaryLsn() - replica.replayLsn <= _maxLagBytes;
+			prunePins();
+		}catch(SQLException e){
+			markDown(replica);
+			replica.checkedAt = now;
+		}
+		return replica.healthy;
+	}
+
+	//the replay position of a replica, null when the connection is to a primary
+	private static String replayLsn(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT pg_last_wal_replay_lsn()::text");
+			return rs.next() ? rs.getString(1) : null;
+		}finally{
+			stmt.close();
+		}
+	}
+
+	private long primaryLsn() throws SQLException {
+		Statement stmt = _primary.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT pg_current_wal_lsn()::text");
+			rs.next();
+			return parseLsn(rs.getString(1));
+		}finally{
+			stmt.close();
+		}
+	}
+
+	private static void markDown(Replica replica){
+		synchronized (replica){
+			replica.healthy = false;
+			if (replica.connection != null){
+				try{
+					replica.connection.close();
+				}catch(SQLException e){
+					// ignored.
+				}
+				replica.connection = null;
+			}
+		}
+	}
+
+	//a WAL position prints as two hex words, e.g. 0/16B3748
+	static long parseLsn(String lsn){
+		int slash = lsn.indexOf('/');
+		return (Long.parseLong(lsn.substring(0, slash), 16) << 32) | Long.parseLong(lsn.substring(slash + 1), 16);
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * This class makes the threads of the background executors: daemon threads
+ * with a fixed name, so they never keep the program from exiting and show up
+ * by name in a thread dump.
+ *
+ */
+
+public class DaemonThreadFactory implements ThreadFactory{
+	private final String name;
+
+	public DaemonThreadFactory(String name){
+		this.name = name;
+	}
+
+	public Thread newThread(Runnable r){
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		return t;
+	}
+}
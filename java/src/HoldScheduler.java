@@ -0,0 +1,302 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * This class expires seat holds. A pending booking holds its seats until
+ * Bookings.hold_until; when that passes the booking is cancelled and its
+ * ShowSeats are released.
+ *
+ * Holds live in a hashed timing wheel: a ring of slots, one per tick, where a
+ * hold due at tick t sits in slot t mod wheelSize. Entries are kept in
+ * primitive arrays linked into per-slot lists, so millions of holds cost a
+ * few tens of bytes each. Every tick the due slots are swept and all holds
+ * that expired are cancelled with one bulk UPDATE of Bookings and one of
+ * ShowSeats, in a single transaction, and logged to the booking change log.
+ *
+ * Holds are not removed when a booking is paid or cancelled early; the bulk
+ * update only touches bookings that are still pending, so such entries
+ * expire as no-ops.
+ *
+ * Each process only adds the holds it creates, so the pending holds are read
+ * from Bookings again every rescan interval and the ones not in the wheel are
+ * merged in. That way the holds of a session that exited before they expired
+ * are still expired, by whichever process sweeps them first.
+ *
+ */
+
+public class HoldScheduler{
+	//number of slots in the wheel, a power of two
+	private static final int WHEEL_SIZE = 4096;
+	private static final int NONE = -1;
+
+	private static final String EXPIRE_BOOKINGS =
+		"UPDATE Bookings SET status = 'Cancelled', hold_until = NULL " +
+		"WHERE bid = ANY(?) AND status = 'Pending' AND hold_until <= to_timestamp(? / 1000.0) RETURNING bid";
+	private static final String RELEASE_SEATS = "UPDATE ShowSeats SET bid = NULL WHERE bid = ANY(?)";
+	private static final String PENDING_HOLDS =
+		"SELECT bid, (extract(epoch FROM hold_until) * 1000)::bigint FROM Bookings " +
+		"WHERE status = 'Pending' AND hold_until IS NOT NULL";
+
+	private final Ticketmaster esql;
+	private final long tickMillis;
+	private final long rescanMillis;
+	private final ScheduledExecutorService timer;
+	private Connection connection = null;
+
+	//the wheel: head entry of each slot
+	private final int[] heads = new int[WHEEL_SIZE];
+	//entries, linked through next; free entries are chained from free
+	private long[] bids = new long[1024];
+	private long[] deadlines = new long[1024];
+	private int[] next = new int[1024];
+	private int free = NONE;
+	private int used = 0;
+	private int size = 0;
+	//the bids in the wheel, so a rescan adds each hold once
+	private final LongHashMap<Boolean> held = new LongHashMap<Boolean>();
+	//last tick whose slot has been swept
+	private long sweptTick;
+	//when the pending holds were last read from Bookings
+	private long rescannedAt;
+
+	//how late the most overdue hold of the last sweep was expired, in milliseconds
+	private volatile long expiryLagMillis = 0;
+	private volatile long expiredTotal = 0;
+
+	public HoldScheduler(Ticketmaster esql, long tickMillis, long rescanMillis){
+		this.esql = esql;
+		this.tickMillis = tickMillis;
+		this.rescanMillis = rescanMillis;
+		this.sweptTick = System.currentTimeMillis() / tickMillis;
+		Arrays.fill(heads, NONE);
+		this.timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("hold-expiry"));
+	}
+
+	/**
+	 * Method to load every pending hold from the database and start expiring
+	 * holds. Holds that already passed while the process was down expire on
+	 * the first tick.
+	 *
+	 * @return the number of holds loaded
+	 * @throws java.sql.SQLException when the holds could not be read
+	 */
+	public int start() throws SQLException {
+		connection = esql.openConnection();
+		int loaded = rescan(System.currentTimeMillis());
+		timer.scheduleAtFixedRate(new Runnable(){
+			public void run(){
+				long now = System.currentTimeMillis();
+				if (now - rescannedAt >= rescanMillis){
+					try {
+						rescan(now);
+					}catch(SQLException e){
+						System.err.println("Unable to read pending seat holds: " + e.getMessage());
+					}
+				}
+				sweep(now);
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+		return loaded;
+	}
+
+	//reads the pending holds from Bookings and adds those not in the wheel yet,
+	//e.g. the holds of a process that exited before they expired
+	int rescan(long now) throws SQLException {
+		rescannedAt = now;
+		Statement stmt = connection.createStatement();
+		int added = 0;
+		try {
+			ResultSet rs = stmt.executeQuery(PENDING_HOLDS);
+			while (rs.next()){
+				synchronized (this){
+					if (held.containsKey(rs.getLong(1))) continue;
+					hold(rs.getLong(1), rs.getLong(2));
+				}
+				added++;
+			}
+		}finally{
+			stmt.close();
+		}
+		return added;
+	}
+
+	/**
+	 * Method to add a hold. A booking already in the wheel is not added again.
+	 *
+	 * @param bid the pending booking
+	 * @param deadline when the hold expires, in milliseconds since the epoch
+	 */
+	public synchronized void hold(long bid, long deadline){
+		if (held.put(bid, Boolean.TRUE) != null) return;
+		int entry = allocate();
+		bids[entry] = bid;
+		deadlines[entry] = deadline;
+		// a deadline in an already swept tick goes into the next tick to sweep
+		long tick = Math.max(deadline / tickMillis, sweptTick + 1);
+		int slot = (int) (tick & (WHEEL_SIZE - 1));
+		next[entry] = heads[slot];
+		heads[slot] = entry;
+		size++;
+	}
+
+	/**
+	 * Method to get the number of holds waiting to expire.
+	 *
+	 * @return the number of holds in the wheel
+	 */
+	public synchronized int size(){
+		return size;
+	}
+
+	/**
+	 * Method to get how far expiry runs behind: the time between the deadline
+	 * of the most overdue hold of the last sweep and the sweep itself. It grows
+	 * when sweeps are late or the bulk update keeps failing.
+	 *
+	 * @return the expiry lag in milliseconds
+	 */
+	public long getExpiryLagMillis(){
+		return expiryLagMillis;
+	}
+
+	/**
+	 * Method to get the number of holds expired since start.
+	 *
+	 * @return the number of expired holds
+	 */
+	public long getExpiredTotal(){
+		return expiredTotal;
+	}
+
+	/**
+	 * Method to stop expiring holds and close the connection.
+	 */
+	public void close(){
+		timer.shutdownNow();
+		try{
+			if (connection != null) connection.close();
+		}catch(SQLException e){
+			// ignored.
+		}
+	}
+
+	//sweeps every slot up to now and expires the due holds in one batch
+	void sweep(long now){
+		long[] due;
+		long oldest;
+		synchronized (this){
+			long nowTick = now / tickMillis;
+			int count = 0;
+			long[] batch = new long[16];
+			oldest = now;
+			// after a long stall every slot is due once; more sweeps add nothing
+			long last = Math.min(nowTick, sweptTick + WHEEL_SIZE);
+			for (long tick = sweptTick + 1; tick <= last; tick++){
+				int slot = (int) (tick & (WHEEL_SIZE - 1));
+				int prev = NONE;
+				int entry = heads[slot];
+				while (entry != NONE){
+					int following = next[entry];
+					if (deadlines[entry] / tickMillis <= nowTick){
+						if (count == batch.length) batch = Arrays.copyOf(batch, count * 2);
+						batch[count++] = bids[entry];
+						oldest = Math.min(oldest, deadlines[entry]);
+						if (prev == NONE) heads[slot] = following;
+						else next[prev] = following;
+						release(entry);
+					}else{
+						prev = entry;
+					}
+					entry = following;
+				}
+			}
+			sweptTick = nowTick;
+			if (count == 0){
+				expiryLagMillis = 0;
+				return;
+			}
+			due = Arrays.copyOf(batch, count);
+		}
+		expiryLagMillis = now - oldest;
+
+		try {
+			expiredTotal += expire(due, now);
+		}catch(SQLException e){
+			System.err.println("Unable to expire " + due.length + " seat holds: " + e.getMessage());
+			// put the holds back so the next tick retries them
+			synchronized (this){
+				for (long bid : due){
+					hold(bid, oldest);
+				}
+			}
+		}
+	}
+
+	//cancels the still pending bookings among bids and releases their seats
+	private int expire(long[] bids, long now) throws SQLException {
+		Long[] boxed = new Long[bids.length];
+		for (int i = 0; i < bids.length; i++) boxed[i] = bids[i];
+
+		connection.setAutoCommit(false);
+		try {
+			PreparedStatement expire = connection.prepareStatement(EXPIRE_BOOKINGS);
+			expire.setArray(1, connection.createArrayOf("bigint", boxed));
+			expire.setLong(2, now);
+			List<Long> expired = new ArrayList<Long>();
+			ResultSet rs = expire.executeQuery();
+			while (rs.next()){
+				expired.add(rs.getLong(1));
+			}
+			expire.close();
+
+			if (!expired.isEmpty()){
+				PreparedStatement release = connection.prepareStatement(RELEASE_SEATS);
+				release.setArray(1, connection.createArrayOf("bigint", expired.toArray()));
+				release.executeUpdate();
+				release.close();
+			}
+			connection.commit();
+			esql.logChanges(ChangeLog.BOOKING_CANCELLED, expired);
+			return expired.size();
+		}catch(SQLException e){
+			connection.rollback();
+			throw e;
+		}finally{
+			connection.setAutoCommit(true);
+		}
+	}
+
+	private int allocate(){
+		if (free != NONE){
+			int entry = free;
+			free = next[entry];
+			return entry;
+		}
+		if (used == bids.length){
+			bids = Arrays.copyOf(bids, used * 2);
+			deadlines = Arrays.copyOf(deadlines, used * 2);
+			next = Arrays.copyOf(next, used * 2);
+		}
+		return used++;
+	}
+
+	private void release(int entry){
+		held.remove(bids[entry]);
+		next[entry] = free;
+		free = entry;
+		size--;
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+
+
+/**
+ * This class lists the result of a query one page at a time with keyset
+ * pagination. The rows are ordered by a unique sort key, and each page starts
+ * after the key of the last row of the previous page:
+ *
+ *   SELECT columns, keys FROM ... WHERE ... AND (keys) > (last key)
+ *   ORDER BY keys LIMIT pageSize + 1
+ *
+ * With an index on the sort key every page costs the same as the first, and
+ * no more than one page is held in memory. The key of the last row is handed
+ * out as an opaque continuation token, so a listing can be resumed later.
+ *
+ */
+
+public class KeysetQuery{
+	public static final int DEFAULT_PAGE_SIZE = 50;
+	private static final char SEPARATOR = '\t';
+
+	private final String columns;
+	private final String fromWhere;
+	private final String[] keys;
+	private final String[] types;
+	private final int pageSize;
+	//the key of the last row listed, null before the first page
+	private String[] after;
+	private boolean more = true;
+
+	/**
+	 * Method to set up a paged query.
+	 *
+	 * @param columns the select list that is printed, e.g. "T.tname"
+	 * @param fromWhere the FROM and WHERE clauses, the WHERE clause is required
+	 * @param keys the columns of the unique sort key, e.g. {"S.sdate", "S.sttime", "S.sid"}
+	 * @param types the SQL type of each key column, e.g. {"DATE", "TIME", "BIGINT"}
+	 * @param pageSize the number of rows per page
+	 * @param token a continuation token to start after, or null to start at the first row
+	 * @throws java.sql.SQLException when the token does not fit the sort key
+	 */
+	public KeysetQuery(String columns, String fromWhere, String[] keys, String[] types, int pageSize, String token) throws SQLException {
+		this.columns = columns;
+		this.fromWhere = fromWhere;
+		this.keys = keys;
+		this.types = types;
+		this.pageSize = Math.max(1, pageSize);
+		this.after = token == null || token.length() == 0 ? null : decode(token, keys.length);
+	}
+
+	/**
+	 * Method to start the same listing over with another page size and token.
+	 *
+	 * @param pageSize the number of rows per page
+	 * @param token a continuation token to start after, or null to start at the first row
+	 * @return a new paged query over the same rows
+	 * @throws java.sql.SQLException when the token does not fit the sort key
+	 */
+	public KeysetQuery restart(int pageSize, String token) throws SQLException {
+		return new KeysetQuery(columns, fromWhere, keys, types, pageSize, token);
+	}
+
+	/**
+	 * Method to check whether rows are left after the last page printed.
+	 *
+	 * @return false once a page came back short
+	 */
+	public boolean hasMore(){
+		return more;
+	}
+
+	/**
+	 * Method to get the continuation token for the rows after the last page printed.
+	 *
+	 * @return the token, or null when nothing is left or no page was printed yet
+	 */
+	public String getToken(){
+		return more && after != null ? encode(after) : null;
+	}
+
+	/**
+	 * Method to print the next page the way Ticketmaster.executeQueryAndPrintResult does.
+	 *
+	 * @param conn the connection to run the page query on
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int printNextPage(Connection conn) throws SQLException {
+		return nextPage(conn, true);
+	}
+
+	/**
+	 * Method to run the next page query and read its rows without printing them.
+	 *
+	 * @param conn the connection to run the page query on
+	 * @return the number of rows read
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int readNextPage(Connection conn) throws SQLException {
+		return nextPage(conn, false);
+	}
+
+	private int nextPage(Connection conn, boolean print) throws SQLException {
+		if (!more) return 0;
+		String keyList = String.join(", ", keys);
+		StringBuilder query = new StringBuilder("SELECT ").append(columns).append(", ").append(keyList).append(' ').append(fromWhere);
+		if (after != null){
+			query.append(" AND (").append(keyList).append(") > (");
+			for (int i = 0; i < keys.length; i++){
+				query.append(i > 0 ? ", " : "").append("CAST(? AS ").append(types[i]).append(')');
+			}
+			query.append(')');
+		}
+		query.append(" ORDER BY ").append(keyList).append(" LIMIT ?");
+
+		PreparedStatement stmt = conn.prepareStatement(query.toString());
+		int rowCount = 0;
+		try {
+			int param = 1;
+			if (after != null){
+				for (String value : after){
+					stmt.setString(param++, value);
+				}
+			}
+			// one row more than a page tells whether another page follows
+			stmt.setInt(param, pageSize + 1);
+			ResultSet rs = stmt.executeQuery();
+			ResultSetMetaData rsmd = rs.getMetaData();
+			int numCol = rsmd.getColumnCount() - keys.length;
+
+			boolean outputHeader = true;
+			more = false;
+			while (rs.next()){
+				if (rowCount == pageSize){
+					more = true;
+					break;
+				}
+				if (outputHeader && print){
+					for (int i = 1; i <= numCol; i++){
+						System.out.print(rsmd.getColumnName(i) + "\t");
+					}
+					System.out.println();
+					outputHeader = false;
+				}
+				for (int i = 1; i <= numCol; ++i){
+					String value = rs.getString(i);
+					if (print) System.out.print(value + "\t");
+				}
+				if (print) System.out.println();
+
+				String[] key = new String[keys.length];
+				for (int i = 0; i < keys.length; i++){
+					key[i] = rs.getString(numCol + 1 + i);
+				}
+				after = key;
+				++rowCount;
+			}
+		}finally{
+			stmt.close();
+		}
+		return rowCount;
+	}
+
+	//the key values, tab separated and base64 encoded
+	private static String encode(String[] key){
+		StringBuilder joined = new StringBuilder();
+		for (int i = 0; i < key.length; i++){
+			if (i > 0) joined.append(SEPARATOR);
+			joined.append(key[i]);
+		}
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(joined.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String[] decode(String token, int keyCount) throws SQLException {
+		String joined;
+		try {
+			joined = new String(Base64.getUrlDecoder().decode(token.trim()), StandardCharsets.UTF_8);
+		}catch(IllegalArgumentException e){
+			throw new SQLException("Invalid continuation token: " + token);
+		}
+		String[] key = joined.split(String.valueOf(SEPARATOR), -1);
+		if (key.length != keyCount){
+			throw new SQLException("Continuation token " + token + " belongs to a different listing");
+		}
+		return key;
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+import java.util.*;
+
+
+/**
+ * This class is a hash map from primitive long keys to values, using open
+ * addressing with linear probing so keys are never boxed. Null values are not
+ * allowed; a null slot marks an empty bucket.
+ *
+ */
+
+public class LongHashMap<V>{
+	private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+	private long[] keys;
+	private Object[] values;
+	private int size = 0;
+	private int shift;
+
+	public LongHashMap(){
+		this(16);
+	}
+
+	public LongHashMap(int expected){
+		int capacity = 16;
+		while (capacity * 3 / 4 < expected) capacity <<= 1;
+		allocate(capacity);
+	}
+
+	public int size(){
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key){
+		int i = slot(key);
+		while (values[i] != null){
+			if (keys[i] == key) return (V) values[i];
+			i = (i + 1) & (keys.length - 1);
+		}
+		return null;
+	}
+
+	public boolean containsKey(long key){
+		return get(key) != null;
+	}
+
+	/**
+	 * Method to map a key to a value.
+	 *
+	 * @param key the key
+	 * @param value the value, must not be null
+	 * @return the previous value of the key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value){
+		if (value == null) throw new NullPointerException("LongHashMap does not allow null values");
+		int i = slot(key);
+		while (values[i] != null){
+			if (keys[i] == key){
+				V previous = (V) values[i];
+				values[i] = value;
+				return previous;
+			}
+			i = (i + 1) & (keys.length - 1);
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size > keys.length * 3 / 4) resize(keys.length << 1);
+		return null;
+	}
+
+	/**
+	 * Method to remove a key, shifting later entries of its probe run back so
+	 * no tombstones are left behind.
+	 *
+	 * @param key the key
+	 * @return the removed value, or null if the key was absent
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key){
+		int mask = keys.length - 1;
+		int i = slot(key);
+		while (values[i] != null && keys[i] != key){
+			i = (i + 1) & mask;
+		}
+		if (values[i] == null) return null;
+		V removed = (V) values[i];
+
+		int hole = i;
+		int j = (i + 1) & mask;
+		while (values[j] != null){
+			int home = slot(keys[j]);
+			// move j into the hole unless its home lies cyclically in (hole, j]
+			if (((j - home) & mask) >= ((j - hole) & mask)){
+				keys[hole] = keys[j];
+				values[hole] = values[j];
+				hole = j;
+			}
+			j = (j + 1) & mask;
+		}
+		values[hole] = null;
+		size--;
+		return removed;
+	}
+
+	/**
+	 * Method to list the values, in no particular order. The list is a copy,
+	 * so the map may be changed while iterating over it.
+	 *
+	 * @return the values
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values(){
+		List<V> result = new ArrayList<V>(size);
+		for (Object value : values){
+			if (value != null) result.add((V) value);
+		}
+		return result;
+	}
+
+	private int slot(long key){
+		return (int) ((key * GOLDEN) >>> shift);
+	}
+
+	private void allocate(int capacity){
+		keys = new long[capacity];
+		values = new Object[capacity];
+		shift = 64 - Integer.numberOfTrailingZeros(capacity);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void resize(int capacity){
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(capacity);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++){
+			if (oldValues[i] != null) put(oldKeys[i], (V) oldValues[i]);
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+import java.util.*;
+
+
+/**
+ * This class is the Ticketmaster menu for offline kiosk mode. It asks for the
+ * same input as the online operations and runs them against an OfflineStore.
+ *
+ */
+
+public class OfflineKiosk{
+
+	/**
+	 * Method to run the menu until the user exits.
+	 *
+	 * @param store the offline store to run the operations on
+	 */
+	public static void run(OfflineStore store){
+		boolean keepon = true;
+		while(keepon){
+			System.out.println("MAIN MENU (OFFLINE)");
+			System.out.println("-------------------");
+			System.out.println("1. Add User");
+			System.out.println("2. Add Booking");
+			System.out.println("3. Add Movie Showing for an Existing Theater");
+			System.out.println("4. Cancel Pending Bookings");
+			System.out.println("5. Change Seats Reserved for a Booking");
+			System.out.println("6. Remove a Payment");
+			System.out.println("7. Clear Cancelled Bookings");
+			System.out.println("8. Remove Shows on a Given Date");
+			System.out.println("9. List all Theaters in a Cinema Playing a Given Show");
+			System.out.println("10. List all Shows that Start at a Given Time and Date");
+			System.out.println("11. List Movie Titles Containing \"love\" Released After 2010");
+			System.out.println("12. List the First Name, Last Name, and Email of Users with a Pending Booking");
+			System.out.println("13. List the Title, Duration, Date, and Time of Shows Playing a Given Movie at a Given Cinema During a Date Range");
+			System.out.println("14. List the Movie Title, Show Date & Start Time, Theater Name, and Cinema Seat Number for all Bookings of a Given User");
+			System.out.println("21. EXIT");
+
+			int choice = Ticketmaster.readChoice();
+			try {
+				switch (choice){
+					case 1: AddUser(store); break;
+					case 2: AddBooking(store); break;
+					case 3: AddMovieShowingToTheater(store); break;
+					case 4: System.out.println("total amount of bookings cancelled: " + store.cancelPendingBookings()); break;
+					case 5: ChangeSeatsForBooking(store); break;
+					case 6: RemovePayment(store); break;
+					case 7: System.out.println("total amount of bookings cleared: " + store.clearCancelledBookings()); break;
+					case 8: RemoveShowsOnDate(store); break;
+					case 9: ListTheatersPlayingShow(store); break;
+					case 10: ListShowsStartingOnTimeAndDate(store); break;
+					case 11: print(new String[] {"title"}, store.listMovieTitlesContainingLoveReleasedAfter2010()); break;
+					case 12: print(new String[] {"fname", "lname", "email"}, store.listUsersWithPendingBooking()); break;
+					case 13: ListMovieAndShowInfoAtCinemaInDateRange(store); break;
+					case 14: ListBookingInfoForUser(store); break;
+					case 21: keepon = false; break;
+					default: System.out.println("This operation is not available offline"); break;
+				}
+			}catch(Exception e){
+				System.out.println(e);
+			}
+		}
+	}
+
+	/**
+	 * Method to print rows the way Ticketmaster.executeQueryAndPrintResult does.
+	 *
+	 * @param header the column names
+	 * @param rows the rows to print
+	 * @return the number of rows printed
+	 */
+	static int print(String[] header, List<String[]> rows){
+		if (!rows.isEmpty()){
+			for (String column : header){
+				System.out.print(column + "\t");
+			}
+			System.out.println();
+		}
+		for (String[] row : rows){
+			for (String value : row){
+				System.out.print(value + "\t");
+			}
+			System.out.println();
+		}
+		return rows.size();
+	}
+
+	private static String prompt(String message) throws Exception {
+		System.out.println(message);
+		return Ticketmaster.in.readLine();
+	}
+
+	static void AddUser(OfflineStore store) throws Exception {//1
+		String fname = prompt("Please enter first name: ");
+		String lname = prompt("Please enter last name: ");
+		String phone = prompt("Please enter phone number: ");
+		if (phone.length() != 10){
+			System.out.println("Phone number must have 10 digits");
+			return;
+		}
+		String email = prompt("Please enter email: ");
+		if (email.length() == 0 || email.length() > 64 || fname.length() == 0 || fname.length() > 32
+				|| lname.length() == 0 || lname.length() > 32){
+			System.out.println("Names must be 1 to 32 and email 1 to 64 characters");
+			return;
+		}
+		String pwd = Ticketmaster.toHexString(Ticketmaster.getSHA(prompt("Please enter password: ")));
+		store.addUser(email, lname, fname, Long.parseLong(phone), pwd);
+	}
+
+	static void AddBooking(OfflineStore store) throws Exception {//2
+		String email = prompt("Please enter user email:");
+		String status = prompt("Please enter status of Booking");
+		String bdatetime = prompt("Please enter Date and time of booking in format '2/5/2016 4:06'");
+		int seats = Integer.parseInt(prompt("Please enter number of seats for booking"));
+		long sid = Long.parseLong(prompt("Please enter SID"));
+		if (status.length() == 0 || status.length() > 16 || seats <= 0){
+			System.out.println("Status must be 1 to 16 characters and seats greater than 0");
+			return;
+		}
+		System.out.println("Booking ID: " + store.addBooking(status, bdatetime, seats, sid, email));
+	}
+
+	static void AddMovieShowingToTheater(OfflineStore store) throws Exception {//3
+		String title = prompt("Please enter Movie title");
+		String rdate = prompt("Please enter movie release date");
+		String country = prompt("Please enter the movie's release country");
+		String description = prompt("Please enter movie description");
+		int duration = Integer.parseInt(prompt("Please enter movie duration in seconds"));
+		String lang = prompt("Please enter the movie language code");
+		if (lang.length() != 2){
+			System.out.println("Language code must be 2 characters");
+			return;
+		}
+		String sdate = prompt("Please enter the show date");
+		String sttime = prompt("Please enter the show start time");
+		String edtime = prompt("Please enter the show end time");
+		long tid = Long.parseLong(prompt("Please enter the theater ID"));
+		System.out.println("Show ID: " + store.addMovieShowing(title, rdate, country, description, duration,
+			lang, "", sdate, sttime, edtime, tid));
+	}
+
+	static void ChangeSeatsForBooking(OfflineStore store) throws Exception {//5
+		long bid = Long.parseLong(prompt("Pleaser enter the booking ID with the seating you wish to change: "));
+		long oldSeat = Long.parseLong(prompt("Please enter the seat ID of the seat that you want to change: "));
+		long newSeat = Long.parseLong(prompt("Please enter the seat ID of the new seat that you want to change to: "));
+		store.changeSeatsForBooking(bid, oldSeat, newSeat);
+	}
+
+	static void RemovePayment(OfflineStore store) throws Exception {//6
+		long bid = Long.parseLong(prompt("Please enter the bookingID of the booking to remove the payment from: "));
+		System.out.println("total amount of payments removed: " + store.removePayment(bid));
+	}
+
+	static void RemoveShowsOnDate(OfflineStore store) throws Exception {//8
+		String date = prompt("Please enter the date to remove the shows: ");
+		System.out.println("total amount of shows removed: " + store.removeShowsOnDate(date));
+	}
+
+	static void ListTheatersPlayingShow(OfflineStore store) throws Exception {//9
+		long cid = Long.parseLong(prompt("Please enter in the cinema ID: "));
+		long sid = Long.parseLong(prompt("Please enter in show ID: "));
+		int count = print(new String[] {"tname"}, store.listTheatersPlayingShow(cid, sid));
+		System.out.println("total amount of theaters: " + count);
+	}
+
+	static void ListShowsStartingOnTimeAndDate(OfflineStore store) throws Exception {//10
+		String sttime = prompt("Please enter in the starting time: ");
+		String sdate = prompt("Please enter in the date: ");
+		int count = print(new String[] {"sid"}, store.listShowsStartingOnTimeAndDate(sttime, sdate));
+		System.out.println("total amount of shows: " + count);
+	}
+
+	static void ListMovieAndShowInfoAtCinemaInDateRange(OfflineStore store) throws Exception {//13
+		String title = prompt("Please enter the Movie Title");
+		long cid = Long.parseLong(prompt("Please enter cinema ID"));
+		String startDate = prompt("Please enter the start date in this format: mm/dd/yyyy");
+		String endDate = prompt("Please enter the end date in this format: mm/dd/yyyy");
+		print(new String[] {"title", "duration", "sdate", "sttime"},
+			store.listMovieAndShowInfoAtCinemaInDateRange(title, cid, startDate, endDate));
+	}
+
+	static void ListBookingInfoForUser(OfflineStore store) throws Exception {//14
+		String email = prompt("Please enter user's email:");
+		print(new String[] {"title", "sdate", "sttime", "tname", "sno"}, store.listBookingInfoForUser(email));
+	}
+}
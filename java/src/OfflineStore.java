@@ -0,0 +1,1172 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+
+/**
+ * This class is an in-memory copy of the Ticketmaster database for kiosks that
+ * can not reach Postgres. The tables the operations change come from a local
+ * snapshot that saveSnapshot refreshes while the database is up, and from
+ * data/*.csv before the first snapshot; the reference tables may come from
+ * the catalog snapshot instead. Every table is kept in LongHashMap indexes on
+ * its keys and the constraints of sql/create.sql are enforced: primary keys,
+ * UNIQUE(sid, csid) on ShowSeats, UNIQUE(bid) on Payments, foreign keys and
+ * the ON DELETE CASCADE rules. Violations raise SQLExceptions with the same
+ * SQLSTATE Postgres would use.
+ *
+ * Every change is also appended to a journal, so that syncJournal can apply
+ * it to Postgres once the database is back. Bookings, shows and movies made
+ * offline get negative keys, which the database never hands out; the sync
+ * gives them real keys.
+ *
+ */
+
+public class OfflineStore{
+	private static final String UNIQUE_VIOLATION = "23505";
+	private static final String FOREIGN_KEY_VIOLATION = "23503";
+	private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+	static class City{ long city_id; String city_name; String city_state; int zip_code; }
+	static class Cinema{ long cid; long city_id; String cname; int tnum; }
+	static class Theater{ long tid; long cid; String tname; long tseats; }
+	static class CinemaSeat{ long csid; long tid; int sno; String stype; }
+	static class Movie{ long mvid; String title; LocalDate rdate; String country; String description; Integer duration; String lang; String genre; }
+	static class User{ String email; String lname; String fname; Long phone; String pwd; }
+	static class Show{ long sid; long mvid; LocalDate sdate; LocalTime sttime; LocalTime edtime; }
+	//holdUntil is hold_until in epoch milliseconds, null when the booking holds no seats
+	static class Booking{ long bid; String status; String bdatetime; int seats; long sid; String email; Long holdUntil; }
+	static class Payment{ long pid; long bid; String pmethod; String pdatetime; float amount; Long trid; }
+	static class ShowSeat{ long ssid; long sid; long csid; Long bid; float price; }
+
+	//tables, by primary key
+	final LongHashMap<City> cities = new LongHashMap<City>();
+	final LongHashMap<Cinema> cinemas = new LongHashMap<Cinema>();
+	final LongHashMap<Theater> theaters = new LongHashMap<Theater>();
+	final LongHashMap<CinemaSeat> cinemaSeats = new LongHashMap<CinemaSeat>();
+	final LongHashMap<Movie> movies = new LongHashMap<Movie>();
+	final Map<String, User> users = new HashMap<String, User>();
+	final LongHashMap<Show> shows = new LongHashMap<Show>();
+	final LongHashMap<Booking> bookings = new LongHashMap<Booking>();
+	final LongHashMap<Payment> payments = new LongHashMap<Payment>();
+	final LongHashMap<ShowSeat> showSeats = new LongHashMap<ShowSeat>();
+
+	//unique and secondary indexes
+	final LongHashMap<Payment> paymentByBid = new LongHashMap<Payment>();
+	final LongHashMap<ShowSeat> showSeatBySidCsid = new LongHashMap<ShowSeat>();
+	final LongHashMap<List<ShowSeat>> showSeatsBySid = new LongHashMap<List<ShowSeat>>();
+	final LongHashMap<List<ShowSeat>> showSeatsByBid = new LongHashMap<List<ShowSeat>>();
+	final LongHashMap<List<Booking>> bookingsBySid = new LongHashMap<List<Booking>>();
+	final Map<String, List<Booking>> bookingsByEmail = new HashMap<String, List<Booking>>();
+	final LongHashMap<List<Theater>> theatersByCid = new LongHashMap<List<Theater>>();
+	//Plays in both directions
+	final LongHashMap<List<Theater>> theatersBySid = new LongHashMap<List<Theater>>();
+	final LongHashMap<List<Show>> showsByTid = new LongHashMap<List<Show>>();
+
+	//lowest keys in use; offline rows take keys below min(0, lowest)
+	private long minMvid = 0;
+	private long minSid = 0;
+	private long minBid = 0;
+	private Journal journal = null;
+	//where the booking changes made offline are logged, null when they are not
+	private ChangeLog changeLog = null;
+
+	//the tables a local snapshot holds and their columns, in load order
+	private static final String[][] SNAPSHOT_TABLES = {
+		{"Users", "email, lname, fname, phone, pwd"},
+		{"Movies", "mvid, title, rdate, country, description, duration, lang, genre"},
+		{"Shows", "sid, mvid, sdate, sttime, edtime"},
+		{"Bookings", "bid, status, bdatetime, seats, sid, email, CAST(extract(epoch FROM hold_until) * 1000 AS BIGINT)"},
+		{"Payments", "pid, bid, pmethod, pdatetime, amount, trid"},
+		{"ShowSeats", "ssid, sid, csid, bid, price"},
+		{"Plays", "sid, tid"}
+	};
+	private static final String SNAPSHOT_MAGIC = "TICKETMASTER_OFFLINE_SNAPSHOT";
+	//ends the rows of a table in a local snapshot; a backslash in a row is always escaped
+	private static final String SECTION_END = "\\.";
+	//rows fetched per round trip while writing a local snapshot
+	private static final int SNAPSHOT_FETCH_SIZE = 1000;
+
+	/**
+	 * Method to build a store from the local snapshot written by saveSnapshot,
+	 * or from the CSV files the database is created from when there is none
+	 * yet. When a catalog snapshot is given, the reference tables are read
+	 * from it instead of their CSV files. Journal entries not synced yet are
+	 * applied on top.
+	 *
+	 * @param dataDir the directory holding the CSV files
+	 * @param snapshot a catalog snapshot, or null
+	 * @param localSnapshot the local snapshot, or null
+	 * @param journalFile the journal changes are appended to
+	 * @param changeLog the log booking changes are logged to, or null
+	 * @return the loaded store
+	 * @throws java.io.IOException when a file could not be read
+	 * @throws java.sql.SQLException when the data violates a constraint
+	 */
+	public static OfflineStore load(File dataDir, File snapshot, File localSnapshot, File journalFile, ChangeLog changeLog) throws IOException, SQLException {
+		OfflineStore store = new OfflineStore();
+		Map<String, List<String[]>> local = null;
+		if (localSnapshot != null && localSnapshot.exists()){
+			try {
+				local = readSnapshot(localSnapshot);
+			}catch(IOException e){
+				System.out.println("Ignoring local snapshot: " + e.getMessage());
+			}
+		}
+		if (local == null){
+			System.out.println("No local snapshot, starting from the seed data in " + dataDir);
+		}
+		CatalogSnapshot catalog = null;
+		if (snapshot != null && snapshot.exists()){
+			try {
+				catalog = CatalogSnapshot.open(snapshot);
+			}catch(IOException e){
+				System.out.println("Ignoring catalog snapshot: " + e.getMessage());
+			}
+		}
+		if (catalog != null){
+			store.loadCatalog(catalog, local == null);
+		}else{
+			for (String[] f : readCsv(dataDir, "Cities")){
+				City c = new City();
+				c.city_id = Long.parseLong(f[0]); c.city_name = f[1]; c.city_state = f[2]; c.zip_code = Integer.parseInt(f[3]);
+				store.insertCity(c);
+			}
+			for (String[] f : readCsv(dataDir, "Cinemas")){
+				Cinema c = new Cinema();
+				c.cid = Long.parseLong(f[0]); c.city_id = Long.parseLong(f[1]); c.cname = f[2]; c.tnum = Integer.parseInt(f[3]);
+				store.insertCinema(c);
+			}
+			for (String[] f : readCsv(dataDir, "Theaters")){
+				Theater t = new Theater();
+				t.tid = Long.parseLong(f[0]); t.cid = Long.parseLong(f[1]); t.tname = f[2]; t.tseats = Long.parseLong(f[3]);
+				store.insertTheater(t);
+			}
+			for (String[] f : readCsv(dataDir, "CinemaSeats")){
+				CinemaSeat s = new CinemaSeat();
+				s.csid = Long.parseLong(f[0]); s.tid = Long.parseLong(f[1]); s.sno = Integer.parseInt(f[2]); s.stype = f[3];
+				store.insertCinemaSeat(s);
+			}
+		}
+		if (catalog == null || local != null){
+			for (String[] f : rows(local, dataDir, "Movies")){
+				Movie m = new Movie();
+				m.mvid = Long.parseLong(f[0]); m.title = f[1]; m.rdate = parseDate(f[2]); m.country = f[3];
+				m.description = f[4]; m.duration = f[5].isEmpty() ? null : Integer.valueOf(f[5]); m.lang = f[6]; m.genre = f[7];
+				store.insertMovie(m);
+			}
+		}
+		for (String[] f : rows(local, dataDir, "Users")){
+			User u = new User();
+			u.email = f[0]; u.lname = f[1]; u.fname = f[2]; u.phone = f[3].isEmpty() ? null : Long.valueOf(f[3]); u.pwd = f[4];
+			store.insertUser(u);
+		}
+		for (String[] f : rows(local, dataDir, "Shows")){
+			Show s = new Show();
+			s.sid = Long.parseLong(f[0]); s.mvid = Long.parseLong(f[1]); s.sdate = parseDate(f[2]);
+			s.sttime = parseTime(f[3]); s.edtime = parseTime(f[4]);
+			store.insertShow(s);
+		}
+		for (String[] f : rows(local, dataDir, "Bookings")){
+			Booking b = new Booking();
+			b.bid = Long.parseLong(f[0]); b.status = f[1]; b.bdatetime = f[2]; b.seats = Integer.parseInt(f[3]);
+			b.sid = Long.parseLong(f[4]); b.email = f[5];
+			//the seed CSV has no hold_until column
+			b.holdUntil = f.length > 6 && !f[6].isEmpty() ? Long.valueOf(f[6]) : null;
+			store.insertBooking(b);
+		}
+		for (String[] f : rows(local, dataDir, "Payments")){
+			Payment p = new Payment();
+			p.pid = Long.parseLong(f[0]); p.bid = Long.parseLong(f[1]); p.pmethod = f[2]; p.pdatetime = f[3];
+			p.amount = Float.parseFloat(f[4]); p.trid = f[5].isEmpty() ? null : Long.valueOf(f[5]);
+			store.insertPayment(p);
+		}
+		for (String[] f : rows(local, dataDir, "ShowSeats")){
+			ShowSeat s = new ShowSeat();
+			s.ssid = Long.parseLong(f[0]); s.sid = Long.parseLong(f[1]); s.csid = Long.parseLong(f[2]);
+			s.bid = f[3].isEmpty() ? null : Long.valueOf(f[3]); s.price = Float.parseFloat(f[4]);
+			store.insertShowSeat(s);
+		}
+		for (String[] f : rows(local, dataDir, "Plays")){
+			store.insertPlay(Long.parseLong(f[0]), Long.parseLong(f[1]));
+		}
+
+		//changes made offline before a restart and not yet synced; an entry that
+		//no longer fits the snapshot stays in the journal for the sync to judge
+		for (String[] op : Journal.read(journalFile)){
+			try {
+				store.apply(op);
+			}catch(SQLException e){
+				System.out.println("Skipping journal entry " + String.join(" ", op) + ": " + e.getMessage());
+			}
+		}
+		store.journal = new Journal(journalFile);
+		store.changeLog = changeLog;
+		return store;
+	}
+
+	private void loadCatalog(CatalogSnapshot catalog, boolean withMovies) throws SQLException {
+		CatalogSnapshot.Table table = catalog.table("Cities");
+		for (int row = 0; row < table.rows(); row++){
+			City c = new City();
+			c.city_id = table.getLong(row, 0); c.city_name = table.getString(row, 1);
+			c.city_state = table.getString(row, 2); c.zip_code = table.getInt(row, 3);
+			insertCity(c);
+		}
+		table = catalog.table("Cinemas");
+		for (int row = 0; row < table.rows(); row++){
+			Cinema c = new Cinema();
+			c.cid = table.getLong(row, 0); c.city_id = table.getLong(row, 1);
+			c.cname = table.getString(row, 2); c.tnum = table.getInt(row, 3);
+			insertCinema(c);
+		}
+		table = catalog.table("Theaters");
+		for (int row = 0; row < table.rows(); row++){
+			Theater t = new Theater();
+			t.tid = table.getLong(row, 0); t.cid = table.getLong(row, 1);
+			t.tname = table.getString(row, 2); t.tseats = table.getLong(row, 3);
+			insertTheater(t);
+		}
+		table = catalog.table("CinemaSeats");
+		for (int row = 0; row < table.rows(); row++){
+			CinemaSeat s = new CinemaSeat();
+			s.csid = table.getLong(row, 0); s.tid = table.getLong(row, 1);
+			s.sno = table.getInt(row, 2); s.stype = table.getString(row, 3);
+			insertCinemaSeat(s);
+		}
+		if (!withMovies) return;
+		table = catalog.table("Movies");
+		for (int row = 0; row < table.rows(); row++){
+			Movie m = new Movie();
+			m.mvid = table.getLong(row, 0); m.title = table.getString(row, 1); m.rdate = table.getDate(row, 2);
+			m.country = table.getString(row, 3); m.description = table.getString(row, 4); m.duration = table.getInt(row, 5);
+			m.lang = table.getString(row, 6); m.genre = table.getString(row, 7);
+			insertMovie(m);
+		}
+	}
+
+	/*
+	 * Inserts, checking the constraints of create.sql and maintaining the indexes.
+	 */
+
+	void insertCity(City c) throws SQLException {
+		if (cities.containsKey(c.city_id)) throw duplicate("cities_pkey", "city_id", c.city_id);
+		cities.put(c.city_id, c);
+	}
+
+	void insertCinema(Cinema c) throws SQLException {
+		if (cinemas.containsKey(c.cid)) throw duplicate("cinemas_pkey", "cid", c.cid);
+		if (!cities.containsKey(c.city_id)) throw missing("Cinemas", "city_id", c.city_id, "Cities");
+		cinemas.put(c.cid, c);
+	}
+
+	void insertTheater(Theater t) throws SQLException {
+		if (theaters.containsKey(t.tid)) throw duplicate("theaters_pkey", "tid", t.tid);
+		if (!cinemas.containsKey(t.cid)) throw missing("Theaters", "cid", t.cid, "Cinemas");
+		theaters.put(t.tid, t);
+		add(theatersByCid, t.cid, t);
+	}
+
+	void insertCinemaSeat(CinemaSeat s) throws SQLException {
+		if (cinemaSeats.containsKey(s.csid)) throw duplicate("cinemaseats_pkey", "csid", s.csid);
+		if (!theaters.containsKey(s.tid)) throw missing("CinemaSeats", "tid", s.tid, "Theaters");
+		cinemaSeats.put(s.csid, s);
+	}
+
+	void insertMovie(Movie m) throws SQLException {
+		if (movies.containsKey(m.mvid)) throw duplicate("movies_pkey", "mvid", m.mvid);
+		movies.put(m.mvid, m);
+		minMvid = Math.min(minMvid, m.mvid);
+	}
+
+	void insertUser(User u) throws SQLException {
+		if (users.containsKey(u.email)) throw duplicate("users_pkey", "email", u.email);
+		users.put(u.email, u);
+	}
+
+	void insertShow(Show s) throws SQLException {
+		if (shows.containsKey(s.sid)) throw duplicate("shows_pkey", "sid", s.sid);
+		if (!movies.containsKey(s.mvid)) throw missing("Shows", "mvid", s.mvid, "Movies");
+		shows.put(s.sid, s);
+		minSid = Math.min(minSid, s.sid);
+	}
+
+	void insertBooking(Booking b) throws SQLException {
+		if (bookings.containsKey(b.bid)) throw duplicate("bookings_pkey", "bid", b.bid);
+		if (!shows.containsKey(b.sid)) throw missing("Bookings", "sid", b.sid, "Shows");
+		if (!users.containsKey(b.email)) throw missing("Bookings", "email", b.email, "Users");
+		bookings.put(b.bid, b);
+		add(bookingsBySid, b.sid, b);
+		List<Booking> byEmail = bookingsByEmail.get(b.email);
+		if (byEmail == null) bookingsByEmail.put(b.email, byEmail = new ArrayList<Booking>());
+		byEmail.add(b);
+		minBid = Math.min(minBid, b.bid);
+	}
+
+	void insertPayment(Payment p) throws SQLException {
+		if (payments.containsKey(p.pid)) throw duplicate("payments_pkey", "pid", p.pid);
+		if (paymentByBid.containsKey(p.bid)) throw duplicate("payments_bid_key", "bid", p.bid);
+		if (!bookings.containsKey(p.bid)) throw missing("Payments", "bid", p.bid, "Bookings");
+		payments.put(p.pid, p);
+		paymentByBid.put(p.bid, p);
+	}
+
+	void insertShowSeat(ShowSeat s) throws SQLException {
+		long pair = pack(s.sid, s.csid);
+		if (showSeats.containsKey(s.ssid)) throw duplicate("showseats_pkey", "ssid", s.ssid);
+		if (showSeatBySidCsid.containsKey(pair)) throw duplicate("showseats_sid_csid_key", "sid, csid", s.sid + ", " + s.csid);
+		if (!shows.containsKey(s.sid)) throw missing("ShowSeats", "sid", s.sid, "Shows");
+		if (!cinemaSeats.containsKey(s.csid)) throw missing("ShowSeats", "csid", s.csid, "CinemaSeats");
+		if (s.bid != null && !bookings.containsKey(s.bid)) throw missing("ShowSeats", "bid", s.bid, "Bookings");
+		showSeats.put(s.ssid, s);
+		showSeatBySidCsid.put(pair, s);
+		add(showSeatsBySid, s.sid, s);
+		if (s.bid != null) add(showSeatsByBid, s.bid, s);
+	}
+
+	void insertPlay(long sid, long tid) throws SQLException {
+		Show show = shows.get(sid);
+		Theater theater = theaters.get(tid);
+		if (show == null) throw missing("Plays", "sid", sid, "Shows");
+		if (theater == null) throw missing("Plays", "tid", tid, "Theaters");
+		List<Theater> playing = theatersBySid.get(sid);
+		if (playing != null && playing.contains(theater)) throw duplicate("plays_pkey", "sid, tid", sid + ", " + tid);
+		add(theatersBySid, sid, theater);
+		add(showsByTid, tid, show);
+	}
+
+	/*
+	 * Deletes. Callers check that no row still references the deleted rows
+	 * through a foreign key without ON DELETE CASCADE.
+	 */
+
+	//deletes a booking and, by cascade, its payment
+	private void deleteBooking(Booking b){
+		bookings.remove(b.bid);
+		remove(bookingsBySid, b.sid, b);
+		List<Booking> byEmail = bookingsByEmail.get(b.email);
+		byEmail.remove(b);
+		if (byEmail.isEmpty()) bookingsByEmail.remove(b.email);
+		Payment p = paymentByBid.remove(b.bid);
+		if (p != null) payments.remove(p.pid);
+	}
+
+	//deletes a show and, by cascade, its bookings
+	private void deleteShow(Show s){
+		List<Booking> booked = bookingsBySid.get(s.sid);
+		if (booked != null){
+			for (Booking b : new ArrayList<Booking>(booked)){
+				deleteBooking(b);
+			}
+		}
+		shows.remove(s.sid);
+	}
+
+	//ShowSeats.bid references Bookings without a cascade, so a booked seat blocks the delete
+	private void checkNotReferenced(List<Booking> victims) throws SQLException {
+		for (Booking b : victims){
+			if (showSeatsByBid.containsKey(b.bid)){
+				throw new SQLException("update or delete on table \"bookings\" violates foreign key constraint on table \"showseats\": Key (bid)=("
+					+ b.bid + ") is still referenced from table \"showseats\".", FOREIGN_KEY_VIOLATION);
+			}
+		}
+	}
+
+	private void setSeatBooking(ShowSeat seat, Long bid){
+		if (seat.bid != null) remove(showSeatsByBid, seat.bid, seat);
+		seat.bid = bid;
+		if (bid != null) add(showSeatsByBid, bid, seat);
+	}
+
+	/*
+	 * The 14 menu operations of Ticketmaster. Each change is described as a
+	 * journal entry, applied to the tables and then appended to the journal.
+	 */
+
+	public void addUser(String email, String lname, String fname, long phone, String pwd) throws SQLException, IOException {//1
+		execute("USER", email, lname, fname, String.valueOf(phone), pwd);
+	}
+
+	public long addBooking(String status, String bdatetime, int seats, long sid, String email) throws SQLException, IOException {//2
+		long bid = minBid - 1;
+		//a pending booking holds its seats for as long as it does online
+		String holdUntil = status.equals("Pending") ? String.valueOf(System.currentTimeMillis() + Ticketmaster.HOLD_MILLIS) : "";
+		execute("BOOKING", String.valueOf(bid), status, bdatetime, String.valueOf(seats), String.valueOf(sid), email, holdUntil);
+		return bid;
+	}
+
+	public long addMovieShowing(String title, String rdate, String country, String description, int duration,
+			String lang, String genre, String sdate, String sttime, String edtime, long tid) throws SQLException, IOException {//3
+		long sid = minSid - 1;
+		execute("SHOWING", String.valueOf(minMvid - 1), title, parseDate(rdate).toString(), country, description,
+			String.valueOf(duration), lang, genre, String.valueOf(sid), parseDate(sdate).toString(),
+			TIME.format(parseTime(sttime)), TIME.format(parseTime(edtime)), String.valueOf(tid));
+		return sid;
+	}
+
+	public int cancelPendingBookings() throws SQLException, IOException {//4
+		return deleteBookingsWithStatus("Pending", System.currentTimeMillis());
+	}
+
+	public void changeSeatsForBooking(long bid, long oldSsid, long newSsid) throws SQLException, IOException {//5
+		execute("MOVE_SEAT", String.valueOf(bid), String.valueOf(oldSsid), String.valueOf(newSsid));
+	}
+
+	public int removePayment(long bid) throws SQLException, IOException {//6
+		int removed = paymentByBid.containsKey(bid) ? 1 : 0;
+		execute("REMOVE_PAYMENT", String.valueOf(bid));
+		return removed;
+	}
+
+	public int clearCancelledBookings() throws SQLException, IOException {//7
+		return deleteBookingsWithStatus("Cancelled", Long.MAX_VALUE);
+	}
+
+	public int removeShowsOnDate(String date) throws SQLException, IOException {//8
+		LocalDate day = parseDate(date);
+		List<String> op = new ArrayList<String>();
+		op.add("DELETE_SHOWS");
+		for (Show s : shows.values()){
+			if (s.sdate.equals(day)) op.add(String.valueOf(s.sid));
+		}
+		if (op.size() == 1) return 0;
+		execute(op.toArray(new String[op.size()]));
+		return op.size() - 1;
+	}
+
+	public List<String[]> listTheatersPlayingShow(long cid, long sid){//9
+		List<String[]> result = new ArrayList<String[]>();
+		List<Theater> playing = theatersBySid.get(sid);
+		if (playing == null) return result;
+		for (Theater t : playing){
+			if (t.cid == cid) result.add(new String[] {t.tname});
+		}
+		return result;
+	}
+
+	public List<String[]> listShowsStartingOnTimeAndDate(String sttime, String sdate){//10
+		LocalTime time = parseTime(sttime);
+		LocalDate date = parseDate(sdate);
+		List<String[]> result = new ArrayList<String[]>();
+		for (Show s : shows.values()){
+			if (s.sttime.equals(time) && s.sdate.equals(date)) result.add(new String[] {String.valueOf(s.sid)});
+		}
+		return result;
+	}
+
+	public List<String[]> listMovieTitlesContainingLoveReleasedAfter2010(){//11
+		LocalDate cutoff = LocalDate.of(2010, 12, 31);
+		List<String[]> result = new ArrayList<String[]>();
+		for (Movie m : movies.values()){
+			if (m.title.contains("Love") && m.rdate.isAfter(cutoff)) result.add(new String[] {m.title});
+		}
+		return result;
+	}
+
+	public List<String[]> listUsersWithPendingBooking(){//12
+		List<String[]> result = new ArrayList<String[]>();
+		for (Booking b : bookings.values()){
+			if (b.status.equals("Pending")){
+				User u = users.get(b.email);
+				result.add(new String[] {u.fname, u.lname, u.email});
+			}
+		}
+		return result;
+	}
+
+	public List<String[]> listMovieAndShowInfoAtCinemaInDateRange(String title, long cid, String startDate, String endDate){//13
+		LocalDate from = parseDate(startDate);
+		LocalDate to = parseDate(endDate);
+		List<String[]> result = new ArrayList<String[]>();
+		List<Theater> inCinema = theatersByCid.get(cid);
+		if (inCinema == null) return result;
+		// a show playing in several theaters of the cinema is listed once, in the
+		// (sdate, sttime, sid) order of the online listing
+		LongHashMap<Show> found = new LongHashMap<Show>();
+		for (Theater t : inCinema){
+			List<Show> playing = showsByTid.get(t.tid);
+			if (playing == null) continue;
+			for (Show s : playing){
+				Movie m = movies.get(s.mvid);
+				if (m.title.equals(title) && !s.sdate.isBefore(from) && !s.sdate.isAfter(to)){
+					found.put(s.sid, s);
+				}
+			}
+		}
+		List<Show> listed = found.values();
+		Collections.sort(listed, new Comparator<Show>(){
+			public int compare(Show a, Show b){
+				int cmp = a.sdate.compareTo(b.sdate);
+				if (cmp != 0) return cmp;
+				cmp = a.sttime.compareTo(b.sttime);
+				if (cmp != 0) return cmp;
+				return Long.compare(a.sid, b.sid);
+			}
+		});
+		for (Show s : listed){
+			Movie m = movies.get(s.mvid);
+			result.add(new String[] {m.title, String.valueOf(m.duration), s.sdate.toString(), TIME.format(s.sttime)});
+		}
+		return result;
+	}
+
+	public List<String[]> listBookingInfoForUser(String email){//14
+		List<String[]> result = new ArrayList<String[]>();
+		List<Booking> booked = bookingsByEmail.get(email);
+		if (booked == null) return result;
+		for (Booking b : booked){
+			List<ShowSeat> seats = showSeatsByBid.get(b.bid);
+			if (seats == null) continue;
+			Show s = shows.get(b.sid);
+			Movie m = movies.get(s.mvid);
+			for (ShowSeat seat : seats){
+				CinemaSeat cs = cinemaSeats.get(seat.csid);
+				Theater t = theaters.get(cs.tid);
+				result.add(new String[] {m.title, s.sdate.toString(), TIME.format(s.sttime), t.tname, String.valueOf(cs.sno)});
+			}
+		}
+		return result;
+	}
+
+	//the status goes into the entry so the sync deletes only bookings that still have it;
+	//a booking whose seat hold runs past now is kept, like operation 4 does online
+	private int deleteBookingsWithStatus(String status, long now) throws SQLException, IOException {
+		List<String> op = new ArrayList<String>();
+		op.add("DELETE_BOOKINGS");
+		op.add(status);
+		for (Booking b : bookings.values()){
+			if (b.status.equals(status) && (b.holdUntil == null || b.holdUntil <= now)) op.add(String.valueOf(b.bid));
+		}
+		if (op.size() == 2) return 0;
+		execute(op.toArray(new String[op.size()]));
+		return op.size() - 2;
+	}
+
+	/*
+	 * Journal entries: an operation name followed by its arguments, with every
+	 * generated key already chosen, so that an entry means the same thing
+	 * when it is replayed into a store and when it is synced to Postgres.
+	 */
+
+	//applies an entry and, only if it succeeded, journals it and logs its booking changes
+	private void execute(String... op) throws SQLException, IOException {
+		List<Change> changes = apply(op);
+		journal.append(op);
+		log(changeLog, changes);
+	}
+
+	//applies an entry to the tables and returns its booking changes; every check runs before the first change
+	private List<Change> apply(String[] op) throws SQLException {
+		List<Change> changes = new ArrayList<Change>();
+		String kind = op[0];
+		if (kind.equals("USER")){
+			User u = new User();
+			u.email = op[1]; u.lname = op[2]; u.fname = op[3]; u.phone = Long.valueOf(op[4]); u.pwd = op[5];
+			insertUser(u);
+		}else if (kind.equals("BOOKING")){
+			Booking b = new Booking();
+			b.bid = Long.parseLong(op[1]); b.status = op[2]; b.bdatetime = op[3]; b.seats = Integer.parseInt(op[4]);
+			b.sid = Long.parseLong(op[5]); b.email = op[6];
+			b.holdUntil = op.length > 7 && !op[7].isEmpty() ? Long.valueOf(op[7]) : null;
+			insertBooking(b);
+			changes.add(new Change(ChangeLog.BOOKING_ADDED, b.bid, b.sid, b.seats, b.status + " " + b.email));
+		}else if (kind.equals("SHOWING")){
+			long tid = Long.parseLong(op[13]);
+			if (!theaters.containsKey(tid)) throw missing("Plays", "tid", tid, "Theaters");
+			Movie m = new Movie();
+			m.mvid = Long.parseLong(op[1]); m.title = op[2]; m.rdate = parseDate(op[3]); m.country = op[4];
+			m.description = op[5]; m.duration = Integer.valueOf(op[6]); m.lang = op[7]; m.genre = op[8];
+			Show s = new Show();
+			s.sid = Long.parseLong(op[9]); s.mvid = m.mvid; s.sdate = parseDate(op[10]);
+			s.sttime = parseTime(op[11]); s.edtime = parseTime(op[12]);
+			if (movies.containsKey(m.mvid)) throw duplicate("movies_pkey", "mvid", m.mvid);
+			if (shows.containsKey(s.sid)) throw duplicate("shows_pkey", "sid", s.sid);
+			insertMovie(m);
+			insertShow(s);
+			insertPlay(s.sid, tid);
+		}else if (kind.equals("DELETE_BOOKINGS")){
+			List<Booking> victims = new ArrayList<Booking>();
+			for (int i = 2; i < op.length; i++){
+				Booking b = bookings.get(Long.parseLong(op[i]));
+				if (b != null && b.status.equals(op[1])) victims.add(b);
+			}
+			checkNotReferenced(victims);
+			for (Booking b : victims){
+				deleteBooking(b);
+				changes.add(new Change(ChangeLog.BOOKING_DELETED, b.bid, 0, 0, ""));
+			}
+		}else if (kind.equals("MOVE_SEAT")){
+			long bid = Long.parseLong(op[1]);
+			ShowSeat oldSeat = showSeats.get(Long.parseLong(op[2]));
+			ShowSeat newSeat = showSeats.get(Long.parseLong(op[3]));
+			if (oldSeat == null || oldSeat.bid == null || oldSeat.bid != bid){
+				throw new SQLException("Seat " + op[2] + " is not reserved for booking " + bid);
+			}
+			if (newSeat == null || newSeat.sid != oldSeat.sid || newSeat.bid != null){
+				throw new SQLException("Seat " + op[3] + " is not a free seat of the same show");
+			}
+			setSeatBooking(newSeat, bid);
+			setSeatBooking(oldSeat, null);
+			changes.add(new Change(ChangeLog.SEATS_CHANGED, bid, oldSeat.ssid, newSeat.ssid, ""));
+		}else if (kind.equals("REMOVE_PAYMENT")){
+			long bid = Long.parseLong(op[1]);
+			Payment p = paymentByBid.remove(bid);
+			if (p != null){
+				payments.remove(p.pid);
+				changes.add(new Change(ChangeLog.PAYMENT_REMOVED, bid, 0, 0, ""));
+			}
+			Booking b = bookings.get(bid);
+			if (b != null){
+				b.status = "Cancelled";
+				changes.add(new Change(ChangeLog.BOOKING_CANCELLED, bid, 0, 0, ""));
+			}
+		}else if (kind.equals("DELETE_SHOWS")){
+			List<Show> victims = new ArrayList<Show>();
+			for (int i = 1; i < op.length; i++){
+				Show s = shows.get(Long.parseLong(op[i]));
+				if (s == null) continue;
+				//ShowSeats.sid and Plays.sid reference Shows without a cascade
+				if (showSeatsBySid.containsKey(s.sid) || theatersBySid.containsKey(s.sid)){
+					throw new SQLException("update or delete on table \"shows\" violates foreign key constraint: Key (sid)=("
+						+ s.sid + ") is still referenced", FOREIGN_KEY_VIOLATION);
+				}
+				List<Booking> booked = bookingsBySid.get(s.sid);
+				if (booked != null) checkNotReferenced(booked);
+				victims.add(s);
+			}
+			for (Show s : victims){
+				deleteShow(s);
+				changes.add(new Change(ChangeLog.SHOW_REMOVED, 0, s.sid, 0, ""));
+			}
+		}else{
+			throw new SQLException("Unknown journal entry " + kind);
+		}
+		return changes;
+	}
+
+	/**
+	 * A booking change for the change log; see ChangeLog for what x, y and
+	 * text hold for each type.
+	 */
+	static class Change{
+		final byte type;
+		final long bid;
+		final long x;
+		final long y;
+		final String text;
+
+		Change(byte type, long bid, long x, long y, String text){
+			this.type = type;
+			this.bid = bid;
+			this.x = x;
+			this.y = y;
+			this.text = text;
+		}
+	}
+
+	//appends the changes and waits once, for the flush that covers the last of them
+	private static void log(ChangeLog changeLog, List<Change> changes){
+		if (changeLog == null || changes.isEmpty()) return;
+		try {
+			long last = -1;
+			for (Change c : changes){
+				last = changeLog.append(c.type, c.bid, c.x, c.y, c.text);
+			}
+			changeLog.awaitDurable(last);
+		}catch(IOException e){
+			System.err.println("Unable to log booking changes: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Local snapshot. Offline mode starts from the last copy of the mutable
+	 * tables taken while the database was up, so it sees the bookings and
+	 * shows made online until then.
+	 */
+
+	/**
+	 * Method to write a local snapshot of the tables offline mode works on.
+	 * The tables are read in one REPEATABLE READ transaction so they agree with
+	 * each other, a batch of rows at a time, and streamed to a temporary file
+	 * that then replaces the snapshot atomically, so a kiosk never starts from
+	 * a half written snapshot.
+	 *
+	 * Layout: a first line with SNAPSHOT_MAGIC and the time taken, then per
+	 * table a line with its name, its rows in journal format and a SECTION_END
+	 * line, which no escaped row can equal.
+	 *
+	 * @param conn a connection not used by anyone else, a replica's is fine
+	 * @param file the snapshot file
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when a table could not be read
+	 * @throws java.io.IOException when the file could not be written
+	 */
+	public static int saveSnapshot(Connection conn, File file) throws SQLException, IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(tmp);
+		Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+		boolean written = false;
+		int total = 0;
+		conn.setAutoCommit(false);
+		conn.setReadOnly(true);
+		conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+		Statement stmt = conn.createStatement();
+		// outside autocommit the driver reads through a cursor instead of buffering the whole table
+		stmt.setFetchSize(SNAPSHOT_FETCH_SIZE);
+		try {
+			out.write(Journal.format(new String[] {SNAPSHOT_MAGIC, String.valueOf(System.currentTimeMillis())}));
+			for (String[] table : SNAPSHOT_TABLES){
+				out.write(Journal.format(new String[] {table[0]}));
+				ResultSet rs = stmt.executeQuery("SELECT " + table[1] + " FROM " + table[0]);
+				String[] row = new String[rs.getMetaData().getColumnCount()];
+				while (rs.next()){
+					for (int i = 0; i < row.length; i++){
+						//NULL reads back the way an empty CSV field does
+						String value = rs.getString(i + 1);
+						row[i] = value == null ? "" : value;
+					}
+					out.write(Journal.format(row));
+					total++;
+				}
+				rs.close();
+				out.write(SECTION_END + "\n");
+			}
+			conn.commit();
+			out.flush();
+			stream.getFD().sync();
+			written = true;
+		}catch(SQLException e){
+			conn.rollback();
+			throw e;
+		}finally{
+			stmt.close();
+			out.close();
+			if (!written) Files.deleteIfExists(tmp.toPath());
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return total;
+	}
+
+	//the rows of each table in a local snapshot, by table name
+	private static Map<String, List<String[]>> readSnapshot(File file) throws IOException {
+		BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+		try {
+			String line = reader.readLine();
+			String[] magic = line != null ? Journal.parse(line) : null;
+			if (magic == null || magic.length != 2 || !magic[0].equals(SNAPSHOT_MAGIC)){
+				throw new IOException(file + " is not an offline snapshot");
+			}
+			Map<String, List<String[]>> tables = new HashMap<String, List<String[]>>();
+			while ((line = reader.readLine()) != null){
+				String name = Journal.parse(line)[0];
+				List<String[]> rows = new ArrayList<String[]>();
+				while ((line = reader.readLine()) != null && !line.equals(SECTION_END)){
+					rows.add(Journal.parse(line));
+				}
+				if (line == null) throw new IOException(file + " is truncated");
+				tables.put(name, rows);
+			}
+			for (String[] table : SNAPSHOT_TABLES){
+				if (!tables.containsKey(table[0])) throw new IOException(file + " has no " + table[0] + " table");
+			}
+			System.out.println("Starting from the local snapshot of " + new java.util.Date(Long.parseLong(magic[1])));
+			return tables;
+		}finally{
+			reader.close();
+		}
+	}
+
+	//the rows of a table from the local snapshot, or from its CSV file when there is none
+	private static List<String[]> rows(Map<String, List<String[]>> local, File dataDir, String table) throws IOException {
+		return local != null ? local.get(table) : readCsv(dataDir, table);
+	}
+
+	/*
+	 * Sync. The entries were decided on a copy that may have gone stale, so
+	 * each one is applied with the same guards as the online operation, and
+	 * the negative keys made offline are swapped for real ones.
+	 */
+
+	/**
+	 * Method to apply a journal written while offline to the database. Each
+	 * journaled operation runs in its own transaction, in the order it was
+	 * made. An operation the database refuses, because it conflicts with a
+	 * change made online in the meantime, is moved to the .rejected file next
+	 * to the journal and the sync goes on. When the database can not be
+	 * reached, the operation and everything after it are kept for the next
+	 * try. The journal is removed once nothing is left. The booking changes
+	 * of every applied operation go to the change log, under their real keys.
+	 *
+	 * @param esql the database to apply the journal to
+	 * @param journalFile the journal
+	 * @return the number of operations applied
+	 * @throws java.io.IOException when the journal could not be read or rewritten
+	 */
+	public static int syncJournal(Ticketmaster esql, File journalFile) throws IOException {
+		if (!journalFile.exists()) return 0;
+		List<String[]> entries = Journal.read(journalFile);
+		List<String[]> rejected = new ArrayList<String[]>();
+		SyncKeys keys = new SyncKeys();
+		int applied = 0;
+		int next = 0;
+		try {
+			Connection conn = esql.openConnection();
+			try {
+				conn.setAutoCommit(false);
+				for (; next < entries.size(); next++){
+					String[] entry = keys.remap(entries.get(next));
+					for (int attempt = 1; ; attempt++){
+						List<Change> changes = new ArrayList<Change>();
+						try {
+							String[] synced = syncEntry(conn, entry, changes);
+							conn.commit();
+							keys.record(entry, synced);
+							log(esql.getChangeLog(), changes);
+							applied++;
+							break;
+						}catch(SQLException e){
+							conn.rollback();
+							//a key picked for an offline row was taken online meanwhile; pick again
+							if (UNIQUE_VIOLATION.equals(e.getSQLState()) && hasOfflineKey(entry) && attempt < 3) continue;
+							if (isTransient(e)) throw e;
+							System.err.println("Rejected offline operation " + String.join(" ", entry) + ": " + e.getMessage());
+							rejected.add(entry);
+							break;
+						}
+					}
+				}
+			}finally{
+				conn.close();
+			}
+		}catch(SQLException e){
+			System.err.println("Journal sync stopped after " + applied + " operations: " + e.getMessage());
+		}
+		if (!rejected.isEmpty()){
+			Journal out = new Journal(new File(journalFile.getPath() + ".rejected"));
+			try {
+				for (String[] entry : rejected){
+					out.append(entry);
+				}
+			}finally{
+				out.close();
+			}
+		}
+		List<String[]> remaining = new ArrayList<String[]>();
+		for (int i = next; i < entries.size(); i++){
+			remaining.add(keys.remap(entries.get(i)));
+		}
+		Journal.rewrite(journalFile, remaining);
+		return applied;
+	}
+
+	//applies one entry in the open transaction, adds the booking changes it made
+	//and returns it with the real keys it got
+	private static String[] syncEntry(Connection conn, String[] op, List<Change> changes) throws SQLException {
+		String kind = op[0];
+		String[] synced = op.clone();
+		Statement stmt = conn.createStatement();
+		try {
+			if (kind.equals("USER")){
+				stmt.executeUpdate(String.format("INSERT INTO Users(email, lname, fname, phone, pwd) VALUES (%s, %s, %s, %s, %s)",
+					quote(op[1]), quote(op[2]), quote(op[3]), op[4], quote(op[5])));
+			}else if (kind.equals("BOOKING")){
+				if (Long.parseLong(op[1]) < 0) synced[1] = nextKey(stmt, "bid", "Bookings");
+				String hold = op.length > 7 && !op[7].isEmpty() ? "to_timestamp(" + op[7] + " / 1000.0)" : "NULL";
+				stmt.executeUpdate(String.format("INSERT INTO Bookings(bid, status, bdatetime, seats, sid, email, hold_until) VALUES (%s, %s, %s, %s, %s, %s, %s)",
+					synced[1], quote(op[2]), quote(op[3]), op[4], op[5], quote(op[6]), hold));
+				changes.add(new Change(ChangeLog.BOOKING_ADDED, Long.parseLong(synced[1]), Long.parseLong(op[5]), Long.parseLong(op[4]), op[2] + " " + op[6]));
+			}else if (kind.equals("SHOWING")){
+				if (Long.parseLong(op[1]) < 0) synced[1] = nextKey(stmt, "mvid", "Movies");
+				if (Long.parseLong(op[9]) < 0) synced[9] = nextKey(stmt, "sid", "Shows");
+				stmt.executeUpdate(String.format("INSERT INTO Movies(mvid, title, rdate, country, description, duration, lang, genre) VALUES (%s, %s, %s, %s, %s, %s, %s, %s)",
+					synced[1], quote(op[2]), quote(op[3]), quote(op[4]), quote(op[5]), op[6], quote(op[7]), quote(op[8])));
+				stmt.executeUpdate(String.format("INSERT INTO Shows(sid, mvid, sdate, sttime, edtime) VALUES (%s, %s, %s, %s, %s)",
+					synced[9], synced[1], quote(op[10]), quote(op[11]), quote(op[12])));
+				stmt.executeUpdate(String.format("INSERT INTO Plays(sid, tid) VALUES (%s, %s)", synced[9], op[13]));
+			}else if (kind.equals("DELETE_BOOKINGS")){
+				//only bookings that still have the status they had offline, and no running seat hold
+				String hold = op[1].equals("Pending") ? " AND (hold_until IS NULL OR hold_until <= now())" : "";
+				ResultSet rs = stmt.executeQuery(String.format("DELETE FROM Bookings WHERE bid IN (%s) AND status = %s%s RETURNING bid", join(op, 2), quote(op[1]), hold));
+				while (rs.next()){
+					changes.add(new Change(ChangeLog.BOOKING_DELETED, rs.getLong(1), 0, 0, ""));
+				}
+			}else if (kind.equals("MOVE_SEAT")){
+				//the guarded swap of operation 5: both rows change or neither does
+				int moved = stmt.executeUpdate(String.format("UPDATE ShowSeats SET bid = CASE WHEN ssid = %s THEN %s END WHERE (ssid = %s AND bid = %s) OR (ssid = %s AND bid IS NULL AND sid = (SELECT sid FROM ShowSeats WHERE ssid = %s AND bid = %s))",
+					op[3], op[1], op[2], op[1], op[3], op[2], op[1]));
+				if (moved != 2){
+					throw new SQLException("Seat " + op[2] + " is no longer booked for " + op[1] + ", or seat " + op[3] + " is no longer free");
+				}
+				changes.add(new Change(ChangeLog.SEATS_CHANGED, Long.parseLong(op[1]), Long.parseLong(op[2]), Long.parseLong(op[3]), ""));
+			}else if (kind.equals("REMOVE_PAYMENT")){
+				if (stmt.executeUpdate(String.format("DELETE FROM Payments WHERE bid = %s", op[1])) > 0){
+					changes.add(new Change(ChangeLog.PAYMENT_REMOVED, Long.parseLong(op[1]), 0, 0, ""));
+				}
+				if (stmt.executeUpdate(String.format("UPDATE Bookings SET status = 'Cancelled' WHERE bid = %s", op[1])) > 0){
+					changes.add(new Change(ChangeLog.BOOKING_CANCELLED, Long.parseLong(op[1]), 0, 0, ""));
+				}
+			}else if (kind.equals("DELETE_SHOWS")){
+				ResultSet rs = stmt.executeQuery(String.format("DELETE FROM Shows WHERE sid IN (%s) RETURNING sid", join(op, 1)));
+				while (rs.next()){
+					changes.add(new Change(ChangeLog.SHOW_REMOVED, 0, rs.getLong(1), 0, ""));
+				}
+			}else{
+				throw new SQLException("Unknown journal entry " + kind);
+			}
+		}finally{
+			stmt.close();
+		}
+		return synced;
+	}
+
+	//a key above every key in the table; a concurrent insert that takes it fails the entry with 23505
+	private static String nextKey(Statement stmt, String column, String table) throws SQLException {
+		ResultSet rs = stmt.executeQuery(String.format("SELECT coalesce(max(%s), 0) + 1 FROM %s", column, table));
+		rs.next();
+		return rs.getString(1);
+	}
+
+	//whether a BOOKING or SHOWING entry still carries a key made offline
+	private static boolean hasOfflineKey(String[] op){
+		if (op[0].equals("BOOKING")) return Long.parseLong(op[1]) < 0;
+		if (op[0].equals("SHOWING")) return Long.parseLong(op[1]) < 0 || Long.parseLong(op[9]) < 0;
+		return false;
+	}
+
+	//errors after which the entry is kept for a later sync instead of rejected:
+	//connection (08), transaction rollback (40), resources (53) and operator intervention (57)
+	private static boolean isTransient(SQLException e){
+		String state = e.getSQLState();
+		if (state == null) return false;
+		return state.startsWith("08") || state.startsWith("40") || state.startsWith("53") || state.startsWith("57");
+	}
+
+	/**
+	 * The real keys the sync gave to bookings, shows and movies made offline,
+	 * so later entries that refer to them can be rewritten.
+	 */
+	private static class SyncKeys{
+		final LongHashMap<String> bids = new LongHashMap<String>();
+		final LongHashMap<String> sids = new LongHashMap<String>();
+		final LongHashMap<String> mvids = new LongHashMap<String>();
+
+		//a copy of the entry with every offline key synced so far replaced by its real key
+		String[] remap(String[] op){
+			String[] mapped = op.clone();
+			String kind = op[0];
+			if (kind.equals("BOOKING")){
+				mapped[1] = map(bids, op[1]);
+				mapped[5] = map(sids, op[5]);
+			}else if (kind.equals("SHOWING")){
+				mapped[1] = map(mvids, op[1]);
+				mapped[9] = map(sids, op[9]);
+			}else if (kind.equals("DELETE_BOOKINGS")){
+				for (int i = 2; i < op.length; i++) mapped[i] = map(bids, op[i]);
+			}else if (kind.equals("MOVE_SEAT") || kind.equals("REMOVE_PAYMENT")){
+				mapped[1] = map(bids, op[1]);
+			}else if (kind.equals("DELETE_SHOWS")){
+				for (int i = 1; i < op.length; i++) mapped[i] = map(sids, op[i]);
+			}
+			return mapped;
+		}
+
+		void record(String[] op, String[] synced){
+			if (op[0].equals("BOOKING")){
+				bids.put(Long.parseLong(op[1]), synced[1]);
+			}else if (op[0].equals("SHOWING")){
+				mvids.put(Long.parseLong(op[1]), synced[1]);
+				sids.put(Long.parseLong(op[9]), synced[9]);
+			}
+		}
+
+		private static String map(LongHashMap<String> keys, String key){
+			String real = keys.get(Long.parseLong(key));
+			return real != null ? real : key;
+		}
+	}
+
+	/**
+	 * Append-only journal of the offline changes, one entry per line with
+	 * tab-separated fields. Every append is fsynced before the operation
+	 * returns, and a torn last line is ignored on read.
+	 */
+	static class Journal{
+		private final FileOutputStream out;
+
+		Journal(File file) throws IOException {
+			//drop a line torn by a crash so the next entry starts on its own line
+			if (file.exists()){
+				byte[] bytes = Files.readAllBytes(file.toPath());
+				int end = bytes.length;
+				while (end > 0 && bytes[end - 1] != '\n') end--;
+				if (end < bytes.length){
+					RandomAccessFile raf = new RandomAccessFile(file, "rw");
+					try {
+						raf.setLength(end);
+					}finally{
+						raf.close();
+					}
+				}
+			}
+			this.out = new FileOutputStream(file, true);
+		}
+
+		void append(String[] op) throws IOException {
+			out.write(format(op).getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		}
+
+		//one line of tab-separated fields, escaped so a field can hold tabs and newlines
+		static String format(String[] fields){
+			StringBuilder line = new StringBuilder();
+			for (int i = 0; i < fields.length; i++){
+				if (i > 0) line.append('\t');
+				line.append(fields[i].replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n"));
+			}
+			return line.append('\n').toString();
+		}
+
+		static List<String[]> read(File file) throws IOException {
+			List<String[]> entries = new ArrayList<String[]>();
+			if (!file.exists()) return entries;
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			String text = new String(bytes, StandardCharsets.UTF_8);
+			int start = 0;
+			int end;
+			while ((end = text.indexOf('\n', start)) >= 0){
+				entries.add(parse(text.substring(start, end)));
+				start = end + 1;
+			}
+			return entries;
+		}
+
+		//the fields of a line written by format, without its newline
+		static String[] parse(String line){
+			String[] fields = line.split("\t", -1);
+			for (int i = 0; i < fields.length; i++){
+				fields[i] = unescape(fields[i]);
+			}
+			return fields;
+		}
+
+		static void rewrite(File file, List<String[]> entries) throws IOException {
+			if (entries.isEmpty()){
+				Files.deleteIfExists(file.toPath());
+				return;
+			}
+			File tmp = new File(file.getPath() + ".tmp");
+			Files.deleteIfExists(tmp.toPath());
+			Journal rewritten = new Journal(tmp);
+			try {
+				for (String[] entry : entries){
+					rewritten.append(entry);
+				}
+			}finally{
+				rewritten.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		void close() throws IOException {
+			out.close();
+		}
+
+		private static String unescape(String field){
+			StringBuilder result = new StringBuilder(field.length());
+			for (int i = 0; i < field.length(); i++){
+				char c = field.charAt(i);
+				if (c == '\\' && i + 1 < field.length()){
+					char next = field.charAt(++i);
+					result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+				}else{
+					result.append(c);
+				}
+			}
+			return result.toString();
+		}
+	}
+
+	/*
+	 * Helpers.
+	 */
+
+	//dates as Postgres reads them with the default DateStyle: ISO or month/day/year
+	static LocalDate parseDate(String value){
+		value = value.trim();
+		if (value.contains("-")) return LocalDate.parse(value);
+		String[] mdy = value.split("/");
+		return LocalDate.of(Integer.parseInt(mdy[2]), Integer.parseInt(mdy[0]), Integer.parseInt(mdy[1]));
+	}
+
+	static LocalTime parseTime(String value){
+		String[] hms = value.trim().split(":");
+		return LocalTime.of(Integer.parseInt(hms[0]), Integer.parseInt(hms[1]), hms.length > 2 ? Integer.parseInt(hms[2]) : 0);
+	}
+
+	//the composite index keys need sid and csid to fit in 32 bits each
+	private static long pack(long high, long low) throws SQLException {
+		if (high < 0 || high > 0xFFFFFFFFL || low < 0 || low > 0xFFFFFFFFL){
+			throw new SQLException("Key (" + high + ", " + low + ") is out of range for the offline store");
+		}
+		return (high << 32) | low;
+	}
+
+	private static <T> void add(LongHashMap<List<T>> index, long key, T row){
+		List<T> rows = index.get(key);
+		if (rows == null) index.put(key, rows = new ArrayList<T>(2));
+		rows.add(row);
+	}
+
+	private static <T> void remove(LongHashMap<List<T>> index, long key, T row){
+		List<T> rows = index.get(key);
+		if (rows == null) return;
+		rows.remove(row);
+		if (rows.isEmpty()) index.remove(key);
+	}
+
+	private static String join(String[] op, int from){
+		StringBuilder keys = new StringBuilder();
+		for (int i = from; i < op.length; i++){
+			keys.append(i == from ? "" : ", ").append(op[i]);
+		}
+		return keys.toString();
+	}
+
+	private static String quote(String value){
+		return value == null ? "NULL" : "'" + value.replace("'", "''") + "'";
+	}
+
+	private static SQLException duplicate(String constraint, String column, Object key){
+		return new SQLException("duplicate key value violates unique constraint \"" + constraint + "\": Key ("
+			+ column + ")=(" + key + ") already exists.", UNIQUE_VIOLATION);
+	}
+
+	private static SQLException missing(String table, String column, Object key, String referenced){
+		return new SQLException("insert or update on table \"" + table.toLowerCase() + "\" violates foreign key constraint: Key ("
+			+ column + ")=(" + key + ") is not present in table \"" + referenced.toLowerCase() + "\".", FOREIGN_KEY_VIOLATION);
+	}
+
+	private static List<String[]> readCsv(File dataDir, String table) throws IOException {
+		List<String[]> rows = new ArrayList<String[]>();
+		for (String line : Files.readAllLines(new File(dataDir, table + ".csv").toPath(), StandardCharsets.UTF_8)){
+			if (line.isEmpty()) continue;
+			// COPY ... WITH DELIMITER ',' in text format, so there is no quoting
+			rows.add(line.split(",", -1));
+		}
+		return rows;
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * This class rebuilds the reporting rollups (ShowStats, CinemaDayStats and
+ * MovieDayStats, see create.sql) over a date range. Triggers keep the rollups
+ * current as bookings and payments land; a rebuild is for repairing them or
+ * filling them after a bulk load.
+ *
+ * The range is cut into day ranges that each hold about the same number of
+ * days with shows. Workers, each on its own connection, take day ranges from
+ * a shared queue and recompute them with rebuild_rollups, one transaction per
+ * day range.
+ *
+ */
+
+public class Rollups{
+	//number of day ranges rebuilt at the same time
+	public static final int DEFAULT_PARALLELISM = 4;
+	//day ranges per worker, so a slow range does not hold up the others
+	private static final int RANGES_PER_WORKER = 4;
+
+	private static final String SHOW_DAYS =
+		"SELECT DISTINCT S.sdate FROM Shows S WHERE S.sdate >= CAST(? AS DATE) AND S.sdate <= CAST(? AS DATE) ORDER BY S.sdate";
+	private static final String REBUILD = "SELECT rebuild_rollups(?, ?)";
+
+	/**
+	 * Method to recompute the rollups of every show between two dates.
+	 *
+	 * @param esql the database to rebuild in
+	 * @param startDate the first show date, in any format Postgres accepts for DATE
+	 * @param endDate the last show date, included
+	 * @param parallelism the number of connections rebuilding at the same time
+	 * @return the number of shows rebuilt
+	 * @throws java.sql.SQLException when the end date is before the start date,
+	 *         or a day range could not be rebuilt
+	 */
+	public static int rebuild(Ticketmaster esql, String startDate, String endDate, int parallelism) throws SQLException {
+		final Queue<java.sql.Date[]> ranges = new ConcurrentLinkedQueue<java.sql.Date[]>();
+		ranges.addAll(dayRanges(esql, startDate, endDate, Math.max(1, parallelism) * RANGES_PER_WORKER));
+		int workers = Math.min(Math.max(1, parallelism), ranges.size());
+
+		ExecutorService executor = Executors.newFixedThreadPool(workers, new DaemonThreadFactory("rollup-rebuild"));
+		final Ticketmaster db = esql;
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		try {
+			for (int i = 0; i < workers; i++){
+				results.add(executor.submit(new Callable<Integer>(){
+					public Integer call() throws SQLException {
+						return rebuildRanges(db, ranges);
+					}
+				}));
+			}
+			int rebuilt = 0;
+			for (Future<Integer> result : results){
+				rebuilt += result.get();
+			}
+			return rebuilt;
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Rollup rebuild was interrupted");
+		}catch(ExecutionException e){
+			if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+			throw new SQLException(e.getCause());
+		}finally{
+			// stop the other workers after a failure; ranges already rebuilt stay committed
+			ranges.clear();
+			executor.shutdown();
+		}
+	}
+
+	//rebuilds day ranges from the queue until it is empty
+	private static int rebuildRanges(Ticketmaster esql, Queue<java.sql.Date[]> ranges) throws SQLException {
+		Connection conn = esql.openConnection();
+		int rebuilt = 0;
+		try {
+			PreparedStatement stmt = conn.prepareStatement(REBUILD);
+			java.sql.Date[] range;
+			while ((range = ranges.poll()) != null){
+				stmt.setDate(1, range[0]);
+				stmt.setDate(2, range[1]);
+				ResultSet rs = stmt.executeQuery();
+				if (rs.next()) rebuilt += rs.getInt(1);
+				rs.close();
+			}
+			stmt.close();
+		}finally{
+			conn.close();
+		}
+		return rebuilt;
+	}
+
+	//cuts [startDate, endDate] into at most pieces half-open day ranges with about as many show days each
+	private static List<java.sql.Date[]> dayRanges(Ticketmaster esql, String startDate, String endDate, int pieces) throws SQLException {
+		Connection conn = esql.openConnection();
+		List<LocalDate> days = new ArrayList<LocalDate>();
+		LocalDate first;
+		LocalDate last;
+		try {
+			PreparedStatement stmt = conn.prepareStatement("SELECT CAST(? AS DATE), CAST(? AS DATE)");
+			stmt.setString(1, startDate);
+			stmt.setString(2, endDate);
+			ResultSet rs = stmt.executeQuery();
+			rs.next();
+			first = rs.getDate(1).toLocalDate();
+			last = rs.getDate(2).toLocalDate();
+			stmt.close();
+
+			stmt = conn.prepareStatement(SHOW_DAYS);
+			stmt.setString(1, startDate);
+			stmt.setString(2, endDate);
+			rs = stmt.executeQuery();
+			while (rs.next()){
+				days.add(rs.getDate(1).toLocalDate());
+			}
+			stmt.close();
+		}finally{
+			conn.close();
+		}
+
+		if (last.isBefore(first)){
+			throw new SQLException("End date " + last + " is before start date " + first);
+		}
+		// the outer ranges stretch to the requested dates so stale day rows without shows are cleared too
+		List<java.sql.Date[]> ranges = new ArrayList<java.sql.Date[]>();
+		pieces = Math.max(1, Math.min(pieces, days.size()));
+		LocalDate from = first;
+		for (int i = 1; i < pieces; i++){
+			LocalDate to = days.get(i * days.size() / pieces);
+			ranges.add(new java.sql.Date[] {java.sql.Date.valueOf(from), java.sql.Date.valueOf(to)});
+			from = to;
+		}
+		ranges.add(new java.sql.Date[] {java.sql.Date.valueOf(from), java.sql.Date.valueOf(last.plusDays(1))});
+		return ranges;
+	}
+}
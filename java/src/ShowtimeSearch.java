@@ -0,0 +1,333 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * This class answers "what is playing in this city on this date" across every
+ * cinema in the city. The cinemas of the city are split into contiguous cinema
+ * ID ranges, each range is queried concurrently on its own connection and the
+ * sorted pieces are merged by start time.
+ *
+ */
+
+public class ShowtimeSearch{
+	//number of cinema ranges searched at the same time
+	public static final int DEFAULT_PARALLELISM = 4;
+
+	private static final String SELECT_SHOWTIMES =
+		"SELECT S.sttime, S.edtime, M.title, C.cname, T.tname, S.sid, T.tid " +
+		"FROM Cinemas C, Theaters T, Plays P, Shows S, Movies M " +
+		"WHERE C.city_id = ? AND S.sdate = CAST(? AS DATE) " +
+		"AND T.cid = C.cid AND P.tid = T.tid AND S.sid = P.sid AND M.mvid = S.mvid ";
+	private static final String ORDER_AND_LIMIT = "ORDER BY S.sttime, S.sid, T.tid LIMIT ?";
+	private static final String RANGE_QUERY = SELECT_SHOWTIMES + "AND C.cid BETWEEN ? AND ? " + ORDER_AND_LIMIT;
+	private static final String SINGLE_QUERY = SELECT_SHOWTIMES + ORDER_AND_LIMIT;
+
+	private final Ticketmaster esql;
+	private final int parallelism;
+	private final ExecutorService executor;
+	//connections not currently used by a range query
+	private final BlockingQueue<Connection> idle = new LinkedBlockingQueue<Connection>();
+	//number of connections opened so far, never more than parallelism
+	private int opened = 0;
+	//when each pooled connection was last found usable, see borrow
+	private final Map<Connection, Long> validatedAt = new ConcurrentHashMap<Connection, Long>();
+
+	/**
+	 * One show playing in one theater of the city.
+	 */
+	public static class Showtime implements Comparable<Showtime>{
+		public final Time sttime;
+		public final Time edtime;
+		public final String title;
+		public final String cname;
+		public final String tname;
+		public final long sid;
+		public final long tid;
+
+		Showtime(ResultSet rs) throws SQLException {
+			this.sttime = rs.getTime(1);
+			this.edtime = rs.getTime(2);
+			this.title = rs.getString(3);
+			this.cname = rs.getString(4);
+			this.tname = rs.getString(5);
+			this.sid = rs.getLong(6);
+			this.tid = rs.getLong(7);
+		}
+
+		public int compareTo(Showtime other){
+			int cmp = this.sttime.compareTo(other.sttime);
+			if (cmp != 0) return cmp;
+			cmp = Long.compare(this.sid, other.sid);
+			if (cmp != 0) return cmp;
+			return Long.compare(this.tid, other.tid);
+		}
+
+		public String toString(){
+			return sttime + "\t" + edtime + "\t" + title + "\t" + cname + "\t" + tname + "\t" + sid + "\t";
+		}
+	}
+
+	public ShowtimeSearch(Ticketmaster esql, int parallelism){
+		this.esql = esql;
+		this.parallelism = Math.max(1, parallelism);
+		this.executor = Executors.newFixedThreadPool(this.parallelism, new DaemonThreadFactory("showtime-search"));
+	}
+
+	/**
+	 * Method to list the showtimes of every cinema in a city on a date, split
+	 * into cinema ID ranges that are queried concurrently.
+	 *
+	 * @param cityID the city to search
+	 * @param sdate the show date, in any format Postgres accepts for DATE
+	 * @param limit the maximum number of showtimes to return
+	 * @return at most limit showtimes ordered by start time
+	 * @throws java.sql.SQLException when one of the range queries failed
+	 */
+	public List<Showtime> search(long cityID, String sdate, int limit) throws SQLException {
+		List<long[]> ranges = cinemaRanges(cityID);
+		if (ranges.isEmpty()){
+			return new ArrayList<Showtime>();
+		}
+		if (ranges.size() == 1){
+			return queryRange(cityID, sdate, ranges.get(0), limit);
+		}
+
+		List<Future<List<Showtime>>> pieces = new ArrayList<Future<List<Showtime>>>();
+		for (final long[] range : ranges){
+			final long city = cityID;
+			final String date = sdate;
+			final int max = limit;
+			pieces.add(executor.submit(new Callable<List<Showtime>>(){
+				public List<Showtime> call() throws SQLException {
+					return queryRange(city, date, range, max);
+				}
+			}));
+		}
+
+		List<List<Showtime>> results = new ArrayList<List<Showtime>>();
+		try {
+			for (Future<List<Showtime>> piece : pieces){
+				results.add(piece.get());
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Showtime search was interrupted");
+		}catch(ExecutionException e){
+			if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+			throw new SQLException(e.getCause());
+		}finally{
+			for (Future<List<Showtime>> piece : pieces){
+				piece.cancel(true);
+			}
+		}
+		return merge(results, limit);
+	}
+
+	/**
+	 * Method to list the showtimes of every cinema in a city on a date with
+	 * one query over the whole city. Used as the baseline for search.
+	 *
+	 * @param cityID the city to search
+	 * @param sdate the show date, in any format Postgres accepts for DATE
+	 * @param limit the maximum number of showtimes to return
+	 * @return at most limit showtimes ordered by start time
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public List<Showtime> searchSingleQuery(long cityID, String sdate, int limit) throws SQLException {
+		for (int attempt = 0; ; attempt++){
+			Connection conn = borrow();
+			try {
+				PreparedStatement stmt = conn.prepareStatement(SINGLE_QUERY);
+				stmt.setLong(1, cityID);
+				stmt.setString(2, sdate);
+				stmt.setInt(3, limit);
+				List<Showtime> result = readShowtimes(stmt);
+				release(conn);
+				return result;
+			}catch(SQLException e){
+				if (!giveBack(conn, e) || attempt > 0) throw e;
+			}
+		}
+	}
+
+	/**
+	 * Method to close the worker threads and every connection opened by the
+	 * search.
+	 */
+	public void close(){
+		executor.shutdownNow();
+		Connection conn;
+		while ((conn = idle.poll()) != null){
+			discard(conn);
+		}
+	}
+
+	//splits the cinemas of a city into at most parallelism contiguous cid ranges
+	private List<long[]> cinemaRanges(long cityID) throws SQLException {
+		List<Long> cinemas = new ArrayList<Long>();
+		CatalogSnapshot catalog = esql.getCatalog();
+		if (catalog != null){
+			// the snapshot keeps Cinemas sorted by cid
+			CatalogSnapshot.Table table = catalog.table("Cinemas");
+			for (int row = 0; row < table.rows(); row++){
+				if (table.getLong(row, 1) == cityID) cinemas.add(table.getLong(row, 0));
+			}
+		}else{
+			for (List<String> row : esql.executeQueryAndReturnResult(
+					String.format("SELECT C.cid FROM Cinemas C WHERE C.city_id = %d ORDER BY C.cid", cityID))){
+				cinemas.add(Long.parseLong(row.get(0)));
+			}
+		}
+
+		List<long[]> ranges = new ArrayList<long[]>();
+		int pieces = Math.min(parallelism, cinemas.size());
+		for (int i = 0; i < pieces; i++){
+			int from = i * cinemas.size() / pieces;
+			int to = (i + 1) * cinemas.size() / pieces - 1;
+			ranges.add(new long[] {cinemas.get(from), cinemas.get(to)});
+		}
+		return ranges;
+	}
+
+	private List<Showtime> queryRange(long cityID, String sdate, long[] range, int limit) throws SQLException {
+		for (int attempt = 0; ; attempt++){
+			Connection conn = borrow();
+			try {
+				PreparedStatement stmt = conn.prepareStatement(RANGE_QUERY);
+				stmt.setLong(1, cityID);
+				stmt.setString(2, sdate);
+				stmt.setLong(3, range[0]);
+				stmt.setLong(4, range[1]);
+				stmt.setInt(5, limit);
+				List<Showtime> result = readShowtimes(stmt);
+				release(conn);
+				return result;
+			}catch(SQLException e){
+				if (!giveBack(conn, e) || attempt > 0) throw e;
+			}
+		}
+	}
+
+	//returns a connection whose query failed to the pool, or drops it after a
+	//connection error (SQLSTATE class 08); true means the query may be retried
+	private boolean giveBack(Connection conn, SQLException e){
+		String state = e.getSQLState();
+		if (state != null && state.startsWith("08")){
+			discard(conn);
+			return true;
+		}
+		release(conn);
+		return false;
+	}
+
+	//returns a connection to the pool, or closes it when its route is no longer
+	//the right one, e.g. a fallback to the primary while a replica is up again;
+	//the next borrow then opens a new one through openReadConnection
+	private void release(Connection conn){
+		if (isUsable(conn)){
+			idle.offer(conn);
+		}else{
+			discard(conn);
+		}
+	}
+
+	private static List<Showtime> readShowtimes(PreparedStatement stmt) throws SQLException {
+		List<Showtime> result = new ArrayList<Showtime>();
+		try {
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()){
+				result.add(new Showtime(rs));
+			}
+		}finally{
+			stmt.close();
+		}
+		return result;
+	}
+
+	//k-way merge of the sorted pieces, stopping as soon as limit rows are taken
+	private static List<Showtime> merge(List<List<Showtime>> pieces, int limit){
+		PriorityQueue<Object[]> heads = new PriorityQueue<Object[]>(pieces.size(), new Comparator<Object[]>(){
+			public int compare(Object[] a, Object[] b){
+				return ((Showtime) a[0]).compareTo((Showtime) b[0]);
+			}
+		});
+		for (List<Showtime> piece : pieces){
+			Iterator<Showtime> it = piece.iterator();
+			if (it.hasNext()) heads.add(new Object[] {it.next(), it});
+		}
+
+		List<Showtime> result = new ArrayList<Showtime>();
+		while (result.size() < limit && !heads.isEmpty()){
+			Object[] head = heads.poll();
+			result.add((Showtime) head[0]);
+			@SuppressWarnings("unchecked")
+			Iterator<Showtime> it = (Iterator<Showtime>) head[1];
+			if (it.hasNext()) heads.add(new Object[] {it.next(), it});
+		}
+		return result;
+	}
+
+	//takes an idle connection, opening a new one while under parallelism.
+	//Pooled connections are checked again through the router at most once per
+	//health check interval, when borrowed and when released; one to a replica
+	//that went down or fell behind, or to the primary while a replica is
+	//healthy, is closed and replaced by a new read connection.
+	private Connection borrow() throws SQLException {
+		while (true){
+			Connection conn = idle.poll();
+			if (conn == null){
+				synchronized (this){
+					if (opened < parallelism){
+						conn = esql.openReadConnection();
+						opened++;
+						validatedAt.put(conn, System.currentTimeMillis());
+						return conn;
+					}
+				}
+				try {
+					conn = idle.take();
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted while waiting for a connection");
+				}
+			}
+			if (isUsable(conn)) return conn;
+			discard(conn);
+		}
+	}
+
+	private boolean isUsable(Connection conn){
+		long now = System.currentTimeMillis();
+		Long checked = validatedAt.get(conn);
+		if (checked != null && now - checked < ConnectionRouter.HEALTH_CHECK_INTERVAL_MS) return true;
+		if (!esql.isReadConnectionUsable(conn)) return false;
+		validatedAt.put(conn, now);
+		return true;
+	}
+
+	//closes a pooled connection and frees its place in the pool
+	private void discard(Connection conn){
+		validatedAt.remove(conn);
+		try{
+			conn.close();
+		}catch(SQLException e){
+			// ignored.
+		}
+		synchronized (this){
+			opened--;
+		}
+	}
+}
@@ -16,8 +16,10 @@ import java.sql.*;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.*;
+import java.util.concurrent.*;
 
 
 /**
@@ -29,22 +31,68 @@ import java.util.*;
 public class Ticketmaster{
 	//reference to physical database connection
 	private Connection _connection = null;
+	//connection settings, kept so helpers can open connections of their own
+	private String _url = null;
+	private String _user = null;
+	private String _passwd = null;
+	//lazily created city-wide showtime search, see SearchShowtimesInCity
+	private ShowtimeSearch _showtimeSearch = null;
+	//routes the reads of read-only operations to replicas
+	private ConnectionRouter _router = null;
+	//whether the operation being run only reads, see beginOperation
+	private boolean _readOnly = false;
+	//the user the current read is made for, see readAs
+	private String _readAs = null;
+	//memory-mapped snapshot of the reference tables, null if it could not be opened
+	private CatalogSnapshot _catalog = null;
+	private File _catalogFile = null;
+	//when CatalogVersions was last compared with the snapshot, see getCatalog
+	private long _catalogCheckedAt = 0;
+	//how long the snapshot is served before CatalogVersions is read again
+	private static final long CATALOG_CHECK_MILLIS = Long.getLong("ticketmaster.catalogCheckMillis", 1000);
+	//expires the seat holds of pending bookings, see startHolds
+	private HoldScheduler _holds = null;
+	//append-only log of booking changes, see logChange
+	private ChangeLog _changeLog = null;
+	//refreshes the local snapshot offline mode starts from, see startOfflineSnapshots
+	private ScheduledExecutorService _offlineSnapshots = null;
+	//how long a pending booking holds its seats, online and in offline mode
+	static final long HOLD_MILLIS = Long.getLong("ticketmaster.holdSeconds", 15 * 60) * 1000;
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 
+	//menu operations that never write; their queries may run on a replica
+	private static final Set<Integer> READ_ONLY_OPERATIONS = new HashSet<Integer>(Arrays.asList(9, 10, 11, 12, 13, 14, 15, 17, 18, 19));
+
 	public Ticketmaster(String dbname, String dbport, String user, String passwd) throws SQLException {
+		this(dbname, dbport, user, passwd, new ArrayList<String>());
+	}
+
+	public Ticketmaster(String dbname, String dbport, String user, String passwd, List<String> replicaPorts) throws SQLException {
 		System.out.print("Connecting to database...");
 		try{
 			// constructs the connection URL
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 			System.out.println ("Connection URL: " + url + "\n");
+			this._url = url;
+			this._user = user;
+			this._passwd = passwd;
 
 			// obtain a physical connection
 	        this._connection = DriverManager.getConnection(url, user, passwd);
+
+			List<String> replicaUrls = new ArrayList<String>();
+			for (String port : replicaPorts){
+				replicaUrls.add("jdbc:postgresql://localhost:" + port + "/" + dbname);
+				System.out.println ("Replica URL: " + replicaUrls.get(replicaUrls.size() - 1));
+			}
+			this._router = new ConnectionRouter(url, this._connection, replicaUrls, user, passwd,
+				Boolean.parseBoolean(System.getProperty("ticketmaster.readYourWrites", "true")),
+				Long.getLong("ticketmaster.maxReplicaLagBytes", 1024 * 1024));
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
 	        System.out.println("Make sure you started postgres on this machine");
-	        System.exit(-1);
+	        throw new SQLException("Unable to Connect to Database", e);
 		}
 	}
 
@@ -53,17 +101,19 @@ public class Ticketmaster{
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 *
 	 * @param sql the input SQL string
+	 * @return the number of rows changed
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException {
+	public int executeUpdate (String sql) throws SQLException {
 		// creates a statement object
 		Statement stmt = this._connection.createStatement ();
 
 		// issues the update instruction
-		stmt.executeUpdate (sql);
+		int rowCount = stmt.executeUpdate (sql);
 
 		// close the instruction
 	    stmt.close ();
+	    return rowCount;
 	}//end executeUpdate
 
 	/**
@@ -76,11 +126,9 @@ public class Ticketmaster{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+		//issues the query instruction, again on the primary if the replica fails
+		ResultSet rs = this.executeRoutedQuery (query);
+		Statement stmt = rs.getStatement ();
 
 		/*
 		 *  obtains the metadata object for the returned result set.  The metadata
@@ -119,11 +167,9 @@ public class Ticketmaster{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+		//issues the query instruction, again on the primary if the replica fails
+		ResultSet rs = this.executeRoutedQuery (query);
+		Statement stmt = rs.getStatement ();
 
 		/*
 		 * obtains the metadata object for the returned result set.  The metadata
@@ -155,11 +201,9 @@ public class Ticketmaster{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+		//issues the query instruction, again on the primary if the replica fails
+		ResultSet rs = this.executeRoutedQuery (query);
+		Statement stmt = rs.getStatement ();
 
 		int rowCount = 0;
 
@@ -182,17 +226,293 @@ public class Ticketmaster{
 	 */
 
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
+		Statement stmt = this._router.forWrite().createStatement ();
 
 		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
 		if (rs.next()) return rs.getInt(1);
 		return -1;
 	}
 
+	/**
+	 * Method to mark the start of a menu operation. Queries of read-only
+	 * operations are routed to a replica, everything else to the primary.
+	 *
+	 * @param choice the menu operation about to run
+	 */
+	public void beginOperation(int choice){
+		this._readOnly = READ_ONLY_OPERATIONS.contains(choice);
+		this._readAs = null;
+	}
+
+	/**
+	 * Method to tie the reads of the current operation to a user, so that
+	 * they see the user's own earlier writes.
+	 *
+	 * @param email the user the reads are made for
+	 */
+	public void readAs(String email){
+		this._readAs = email;
+	}
+
+	/**
+	 * Method to get the connection queries of the current operation use.
+	 *
+	 * @return a replica for read-only operations, otherwise the primary
+	 */
+	public Connection currentConnection(){
+		return this._readOnly ? this._router.forRead(this._readAs) : this._router.forWrite();
+	}
+
+	/**
+	 * Method to get the connection to run a read again on after it failed.
+	 * A connection error on a replica marks the replica down and moves the
+	 * read to the primary; any other error is thrown again.
+	 *
+	 * @param conn the connection the read failed on
+	 * @param e the error of the read
+	 * @return the primary connection
+	 * @throws java.sql.SQLException e, when the read should not be run again
+	 */
+	public Connection retryConnection(Connection conn, SQLException e) throws SQLException {
+		if (conn == this._connection || !this._router.readFailed(conn, e)) throw e;
+		System.err.println("Replica failed, reading from the primary: " + e.getMessage());
+		return this._connection;
+	}
+
+	//runs a query on the current connection, falling back to the primary
+	private ResultSet executeRoutedQuery(String query) throws SQLException {
+		Connection conn = this.currentConnection();
+		Statement stmt = conn.createStatement();
+		try {
+			return stmt.executeQuery(query);
+		}catch(SQLException e){
+			stmt.close();
+			stmt = this.retryConnection(conn, e).createStatement();
+			return stmt.executeQuery(query);
+		}
+	}
+
+	/**
+	 * Method to check that a pooled read connection may still serve reads,
+	 * see ConnectionRouter.isReadConnectionUsable.
+	 *
+	 * @param conn a connection from openReadConnection
+	 * @return false if the connection should be closed and replaced
+	 */
+	public boolean isReadConnectionUsable(Connection conn){
+		return this._router.isReadConnectionUsable(conn);
+	}
+
+	/**
+	 * Method to open an additional connection for reads, to a replica when
+	 * one is healthy. The caller owns the returned connection and must close it.
+	 *
+	 * @return a new read connection
+	 * @throws java.sql.SQLException when the connection cannot be opened
+	 */
+	public Connection openReadConnection() throws SQLException {
+		return this._router.openReadConnection();
+	}
+
+	/**
+	 * Method to open an additional physical connection to the same database.
+	 * The caller owns the returned connection and must close it.
+	 *
+	 * @return a new connection using the settings given to the constructor
+	 * @throws java.sql.SQLException when the connection cannot be opened
+	 */
+	public Connection openConnection() throws SQLException {
+		return DriverManager.getConnection(this._url, this._user, this._passwd);
+	}
+
+	/**
+	 * Method to open the catalog snapshot of the reference tables, refreshing
+	 * it first if the database changed since it was written. Without a
+	 * snapshot the operations fall back to querying the database.
+	 *
+	 * @param file the snapshot file
+	 */
+	public void loadCatalog(File file){
+		long start = System.nanoTime();
+		this._catalogFile = file;
+		try {
+			this._catalog = CatalogSnapshot.openOrBuild(this, file);
+			this._catalogCheckedAt = System.currentTimeMillis();
+			System.out.println(String.format("Catalog snapshot ready in %.1f ms", (System.nanoTime() - start) / 1e6));
+		}catch(Exception e){
+			System.err.println("Unable to open catalog snapshot: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Method to load the seat holds of pending bookings and start expiring
+	 * them in the background.
+	 */
+	public void startHolds(){
+		this._holds = new HoldScheduler(this, Long.getLong("ticketmaster.holdTickMillis", 1000),
+			Long.getLong("ticketmaster.holdRescanMillis", 30000));
+		try {
+			int loaded = this._holds.start();
+			System.out.println("Tracking " + loaded + " seat holds");
+		}catch(SQLException e){
+			System.err.println("Unable to start seat hold expiry: " + e.getMessage());
+			this._holds.close();
+			this._holds = null;
+		}
+	}
+
+	/**
+	 * Method to keep the local snapshot that offline kiosk mode starts from
+	 * current: it is written right away and then every few minutes in the
+	 * background, on a read connection of its own, so it goes to a replica
+	 * when there is one. Only kiosks (-Dticketmaster.kiosk=true) call this;
+	 * other sessions never go offline and do not pay for the dumps.
+	 *
+	 * @param file the snapshot file
+	 */
+	public void startOfflineSnapshots(final File file){
+		long minutes = Math.max(1, Long.getLong("ticketmaster.offlineSnapshotMinutes", 5));
+		this._offlineSnapshots = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("offline-snapshot"));
+		this._offlineSnapshots.scheduleWithFixedDelay(new Runnable(){
+			public void run(){
+				try {
+					Connection conn = openReadConnection();
+					try {
+						OfflineStore.saveSnapshot(conn, file);
+					}finally{
+						conn.close();
+					}
+				}catch(Exception e){
+					System.err.println("Unable to refresh offline snapshot: " + e.getMessage());
+				}
+			}
+		}, 0, minutes, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Method to open the booking change log. Every process on the host
+	 * appends to the same log, so this only fails on a real I/O error, and
+	 * then Ticketmaster does not start: booking changes made without the log
+	 * would be missing from it for good.
+	 *
+	 * @param dir the log directory
+	 * @return the log
+	 * @throws java.io.IOException when the log could not be opened
+	 */
+	static ChangeLog openChangeLog(File dir) throws IOException {
+		try {
+			return new ChangeLog(dir);
+		}catch(IOException e){
+			throw new IOException("Unable to open change log, not starting without it: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Method to get the booking change log.
+	 *
+	 * @return the log, or null for a Ticketmaster not started through main, e.g. by Benchmark
+	 */
+	public ChangeLog getChangeLog(){
+		return this._changeLog;
+	}
+
+	/**
+	 * Method to log a booking change once it is committed. It returns when
+	 * the change is on disk; concurrent changes share one flush.
+	 *
+	 * @param type the ChangeLog event type
+	 * @param bid the booking
+	 * @param x first type-specific value
+	 * @param y second type-specific value
+	 * @param text type-specific text
+	 */
+	void logChange(byte type, long bid, long x, long y, String text){
+		if (this._changeLog == null) return;
+		try {
+			this._changeLog.awaitDurable(this._changeLog.append(type, bid, x, y, text));
+		}catch(IOException e){
+			System.err.println("Unable to log booking change: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Method to log the same change for many bookings, or for many shows,
+	 * waiting for a single flush at the end.
+	 *
+	 * @param type the ChangeLog event type
+	 * @param ids the bookings, or the shows for SHOW_REMOVED
+	 */
+	void logChanges(byte type, Collection<Long> ids){
+		if (this._changeLog == null || ids.isEmpty()) return;
+		try {
+			long last = -1;
+			for (long id : ids){
+				// a removed show goes in x, see ChangeLog.SHOW_REMOVED
+				last = type == ChangeLog.SHOW_REMOVED ? this._changeLog.append(type, 0, id, 0, "") : this._changeLog.append(type, id, 0, 0, "");
+			}
+			this._changeLog.awaitDurable(last);
+		}catch(IOException e){
+			System.err.println("Unable to log booking changes: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Method to get the catalog snapshot of the reference tables. Before it is
+	 * served, CatalogVersions is read again if the last check is older than
+	 * CATALOG_CHECK_MILLIS, and the snapshot is rebuilt when a reference table
+	 * changed since, e.g. a cinema was added by another process. Without
+	 * CatalogVersions the snapshot is only checked at startup.
+	 *
+	 * @return the snapshot, or null when none could be opened or refreshed
+	 */
+	public synchronized CatalogSnapshot getCatalog(){
+		if (this._catalog == null) return null;
+		long now = System.currentTimeMillis();
+		if (now - this._catalogCheckedAt < CATALOG_CHECK_MILLIS) return this._catalog;
+		this._catalogCheckedAt = now;
+		Map<String, Long> versions = CatalogSnapshot.versions(this);
+		if (versions.isEmpty() || this._catalog.isCurrent(versions)) return this._catalog;
+		try {
+			this._catalog = CatalogSnapshot.openOrBuild(this, this._catalogFile);
+		}catch(Exception e){
+			// a stale snapshot would hide new rows; the callers query the database instead
+			System.err.println("Unable to refresh catalog snapshot: " + e.getMessage());
+			this._catalog = null;
+		}
+		return this._catalog;
+	}
+
+	/**
+	 * Method to get the city-wide showtime search, creating it on first use.
+	 *
+	 * @return the showtime search bound to this database
+	 */
+	public ShowtimeSearch getShowtimeSearch(){
+		if (this._showtimeSearch == null){
+			this._showtimeSearch = new ShowtimeSearch(this, ShowtimeSearch.DEFAULT_PARALLELISM);
+		}
+		return this._showtimeSearch;
+	}
+
 	/**
 	 * Method to close the physical connection if it is open.
 	 */
 	public void cleanup(){
+		if (this._showtimeSearch != null){
+			this._showtimeSearch.close();
+		}
+		if (this._router != null){
+			this._router.close();
+		}
+		if (this._holds != null){
+			this._holds.close();
+		}
+		if (this._changeLog != null){
+			this._changeLog.close();
+		}
+		if (this._offlineSnapshots != null){
+			this._offlineSnapshots.shutdownNow();
+		}
 		try{
 			if (this._connection != null){
 				this._connection.close ();
@@ -208,10 +528,10 @@ public class Ticketmaster{
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		if (args.length != 3 && args.length != 4) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + Ticketmaster.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [<replica port>,...]");
 			return;
 		}//end if
 
@@ -233,10 +553,47 @@ public class Ticketmaster{
 			String dbname = args[0];
 			String dbport = args[1];
 			String user = args[2];
+			List<String> replicaPorts = new ArrayList<String>();
+			if (args.length == 4) {
+				replicaPorts.addAll(Arrays.asList(args[3].split(",")));
+			}
 
+			File snapshot = new File(System.getProperty("ticketmaster.snapshot", "catalog.snap"));
+			File journal = new File(System.getProperty("ticketmaster.journal", "kiosk.journal"));
+			File offlineSnapshot = new File(System.getProperty("ticketmaster.offlineSnapshot", "offline.snap"));
+			// opened first so that offline operations and the journal sync are logged too
+			ChangeLog changeLog = openChangeLog(new File(System.getProperty("ticketmaster.changelog", "changelog")));
+
+			// without a database, kiosks keep selling from the local copy
+			boolean offline = Boolean.getBoolean("ticketmaster.offline");
+			if (!offline) {
+				try {
+					esql = new Ticketmaster (dbname, dbport, user, "", replicaPorts);
+				}catch(SQLException e){
+					offline = true;
+				}
+			}
+			if (offline) {
+				System.out.println("Starting offline kiosk mode");
+				File dataDir = new File(System.getProperty("ticketmaster.dataDir", "../data"));
+				try {
+					OfflineKiosk.run(OfflineStore.load(dataDir, snapshot, offlineSnapshot, journal, changeLog));
+				}finally{
+					changeLog.close();
+				}
+				return;
+			}
 
-
-			esql = new Ticketmaster (dbname, dbport, user, "");
+			esql._changeLog = changeLog;
+			int synced = OfflineStore.syncJournal(esql, journal);
+			if (synced > 0) {
+				System.out.println("Applied " + synced + " offline operations from " + journal);
+			}
+			esql.loadCatalog(snapshot);
+			if (Boolean.getBoolean("ticketmaster.kiosk")) {
+				esql.startOfflineSnapshots(offlineSnapshot);
+			}
+			esql.startHolds();
 
 			boolean keepon = true;
 			while(keepon){
@@ -256,12 +613,20 @@ public class Ticketmaster{
 				System.out.println("12. List the First Name, Last Name, and Email of Users with a Pending Booking");
 				System.out.println("13. List the Title, Duration, Date, and Time of Shows Playing a Given Movie at a Given Cinema During a Date Range");
 				System.out.println("14. List the Movie Title, Show Date & Start Time, Theater Name, and Cinema Seat Number for all Bookings of a Given User");
-				System.out.println("15. EXIT");
+				System.out.println("15. Search Showtimes in a City on a Given Date");
+				System.out.println("16. Show Seat Hold Status");
+				System.out.println("17. Report Occupancy and Revenue by Cinema for a Date Range");
+				System.out.println("18. Report Occupancy and Revenue by Movie per Day for a Date Range");
+				System.out.println("19. Report Occupancy and Revenue of a Show");
+				System.out.println("20. Rebuild Reporting Rollups for a Date Range");
+				System.out.println("21. EXIT");
 
 				/*
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
 				 */
-				switch (readChoice()){
+				int choice = readChoice();
+				esql.beginOperation(choice);
+				switch (choice){
 					case 1: AddUser(esql); break;
 					case 2: AddBooking(esql); break;
 					case 3: AddMovieShowingToTheater(esql); break;
@@ -276,7 +641,13 @@ public class Ticketmaster{
 					case 12: ListUsersWithPendingBooking(esql); break;
 					case 13: ListMovieAndShowInfoAtCinemaInDateRange(esql); break;
 					case 14: ListBookingInfoForUser(esql); break;
-					case 15: keepon = false; break;
+					case 15: SearchShowtimesInCity(esql); break;
+					case 16: ShowSeatHoldStatus(esql); break;
+					case 17: ReportCinemaOccupancy(esql); break;
+					case 18: ReportMovieRevenue(esql); break;
+					case 19: ReportShowOccupancy(esql); break;
+					case 20: RebuildRollups(esql); break;
+					case 21: keepon = false; break;
 				}
 			}
 		}catch(Exception e){
@@ -329,6 +700,148 @@ public class Ticketmaster{
 		return hexString.toString();
 	}
 
+	/*
+	 * The SQL of the menu operations. Benchmark runs the same statements, so
+	 * what it times is what the operations execute.
+	 */
+
+	static final String INSERT_USER = "INSERT INTO Users(email, lname, fname, phone, pwd) VALUES (?, ?, ?, ?, ?)";//1
+	static final String NEXT_BID = "SELECT max(B.bid) FROM Bookings B";//2
+	static final String NEXT_MVID = "SELECT max(M.mvid) FROM Movies M";//3
+	static final String NEXT_SID = "SELECT max(S.sid) FROM Shows S";//3
+
+	//a pending booking holds its seats until hold_until, then it is cancelled
+	static String insertBooking(long bid, String status, String bdatetime, String seats, String sid, String email, long holdUntil){//2
+		String hold = status.equals("Pending") ? "to_timestamp(" + holdUntil + " / 1000.0)" : "NULL";
+		return "INSERT INTO Bookings(bid, status, bdatetime, seats, sid, email, hold_until) VALUES (" + bid + "," + "'" + status + "'" + "," + "'" + bdatetime + "'" + "," + seats + "," + sid + "," + "'" + email + "'" + "," + hold + ")";
+	}
+
+	static String[] insertMovieShowing(long mvid, String title, String date, String country, String description, int duration,
+			String language, String genre, long sid, String sDate, String sTime, String eTime, long tid){//3
+		return new String[] {
+			"INSERT INTO Movies(mvid, title, rdate, country, description, duration, lang, genre) VALUES("
+				+ mvid + ", '" + title + "','" + date + "', '" + country + "', '" + description + "', " + duration + ", '" + language + "', '" + genre + "')",
+			"INSERT INTO Shows(sid, mvid, sdate, sttime, edtime) VALUES("
+				+ sid + ", " + mvid + ", '" + sDate + "', '" + sTime + "', '" + eTime + "')",
+			"INSERT INTO Plays(sid, tid) VALUES(" + sid + ", " + tid + ")"};
+	}
+
+	static String cancelPendingBookings(){//4
+		String pstatus = "'Pending'";
+		return String.format("DELETE FROM Bookings WHERE status = %s AND (hold_until IS NULL OR hold_until <= now()) RETURNING bid", pstatus);
+		// here is the sql statement in the () above
+		// DELETE FROM Booking
+		// WHERE status = %s
+		// AND (hold_until IS NULL OR hold_until <= now())
+		// RETURNING bid
+		//,pstatus)
+		// bookings whose seat hold is still running are left alone
+	}
+
+	static String changeSeatsForBooking(String bID, String oldSeat, String newSeat){//5
+		return String.format("UPDATE ShowSeats SET bid = CASE WHEN ssid = %s THEN %s END WHERE (ssid = %s AND bid = %s) OR (ssid = %s AND bid IS NULL AND sid = (SELECT sid FROM ShowSeats WHERE ssid = %s AND bid = %s))", newSeat, bID, oldSeat, bID, newSeat, oldSeat, bID);
+		// here is the sql statement in the () above
+		// UPDATE ShowSeats
+		// SET bid = CASE WHEN ssid = %s THEN %s END
+		// WHERE (ssid = %s AND bid = %s)
+		// OR (ssid = %s AND bid IS NULL
+		//     AND sid = (SELECT sid FROM ShowSeats WHERE ssid = %s AND bid = %s))
+		// , newSeat, bID, oldSeat, bID, newSeat, oldSeat, bID)
+		// the old seat is released and the new one taken only if both rows match,
+		// so the new seat must be free and belong to the same show
+	}
+
+	static String removePayment(String bID){//6
+		return String.format("DELETE FROM Payments WHERE bid = %s", bID);
+		// here is the sql statement in the () above
+		// DELETE FROM Payment
+		// WHERE bookingID = %s
+		// ,bID)
+	}
+
+	static String cancelBooking(String bID){//6
+		String canc = "'Cancelled'";
+		return String.format("UPDATE Bookings SET status = %s WHERE bid = %s", canc,bID);
+		// here is the sql statement in the () above
+		// UPDATE Booking
+		// SET status = %s
+		// WHERE bookingID = %s
+		// ,canc,bID)
+	}
+
+	static String clearCancelledBookings(){//7
+		String cstatus = "'Cancelled'";
+		return String.format("DELETE FROM Bookings WHERE status = %s RETURNING bid", cstatus);
+		// here is the sql statement in the () above
+		// DELETE FROM Booking
+		// WHERE status = %s
+		// RETURNING bid
+		// ,cstatus)
+	}
+
+	static String removeShowsOnDate(String uDate){//8
+		return String.format("DELETE FROM Shows WHERE sdate = '%s' RETURNING sid", uDate);
+		// here is the sql statement in the () above
+		// DELETE Show
+		// WHERE date = %s
+		// RETURNING sid
+		//,uDate)
+	}
+
+	static KeysetQuery theatersPlayingShow(long cinID, long showID) throws SQLException {//9
+		String fromWhere = String.format("FROM Plays P, Theaters T WHERE T.cid = %d AND P.sid = %d AND P.tid = T.tid", cinID, showID);
+		// here is the sql statement in the () above
+		// SELECT T.tname
+		// FROM Plays P, Theaters T
+		// WHERE T.cid = %d
+		// AND P.sid = %d
+		// AND P.tid = T.tid
+		// ORDER BY T.tid
+		//,cinID, showID);
+		return listing("T.tname", fromWhere, new String[] {"T.tid"}, new String[] {"BIGINT"});
+	}
+
+	static KeysetQuery showsStartingOnTimeAndDate(String stime, String sdate) throws SQLException {//10
+		String fromWhere = String.format("FROM Shows S WHERE S.sttime = '%s' AND S.sdate = '%s'", stime, sdate);
+		// here is the sql statement in the () above
+		// SELECT S.sid
+		// FROM Shows S
+		// WHERE S.sttime = %s
+		// AND S.sdate = %s
+		// ORDER BY S.sid
+		//,stime,sdate);
+		return listing("S.sid", fromWhere, new String[] {"S.sid"}, new String[] {"BIGINT"});
+	}
+
+	static KeysetQuery movieTitlesContainingLoveReleasedAfter2010() throws SQLException {//11
+		String fromWhere = "FROM movies M WHERE M.title LIKE '%Love%' AND M.rdate > '12/31/2010'";
+		return listing("M.title", fromWhere, new String[] {"M.mvid"}, new String[] {"BIGINT"});
+	}
+
+	static KeysetQuery usersWithPendingBooking() throws SQLException {//12
+		String fromWhere = "FROM users U, bookings B WHERE B.status = 'Pending' AND B.email = U.email";
+		return listing("U.fname, U.lname, U.email", fromWhere, new String[] {"B.bid"}, new String[] {"BIGINT"});
+	}
+
+	static KeysetQuery movieAndShowInfoAtCinemaInDateRange(String title, long cid, String startDate, String endDate) throws SQLException {//13
+		// a show playing in several theaters of the cinema is listed once, so (sdate, sttime, sid) is unique
+		String fromWhere = "FROM movies M, shows S WHERE M.title = '" + title + "' AND M.mvid = S.mvid AND S.sdate >= '" + startDate + "' AND S.sdate <= '" + endDate + "' AND EXISTS (SELECT 1 FROM plays P, theaters T WHERE P.sid = S.sid AND T.tid = P.tid AND T.cid = " + cid + ")";
+		return listing("M.title, M.duration, S.sdate, S.sttime", fromWhere,
+			new String[] {"S.sdate", "S.sttime", "S.sid"}, new String[] {"DATE", "TIME", "BIGINT"});
+	}
+
+	static KeysetQuery bookingInfoForUser(String email) throws SQLException {//14
+		// one row per booked seat, so (sdate, sttime, ssid) is unique
+		String fromWhere = "FROM bookings B, movies M, shows S, theaters T, cinemaseats C, showseats SS WHERE B.email = '" + email + "' AND S.sid = B.sid AND M.mvid = S.mvid AND SS.bid = B.bid AND C.csid = SS.csid AND T.tid = C.tid";
+		return listing("M.title, S.sdate, S.sttime, T.tname, C.sno", fromWhere,
+			new String[] {"S.sdate", "S.sttime", "SS.ssid"}, new String[] {"DATE", "TIME", "BIGINT"});
+	}
+
+	//the first page of a listing, as it runs without a page size or token given
+	private static KeysetQuery listing(String columns, String fromWhere, String[] keys, String[] types) throws SQLException {
+		return new KeysetQuery(columns, fromWhere, keys, types, KeysetQuery.DEFAULT_PAGE_SIZE, null);
+	}
+
 	public static void AddUser(Ticketmaster esql){//1
 		String userEmail = "";
 		String userFname = "";
@@ -415,7 +928,7 @@ public class Ticketmaster{
 
 		try {
 			final PreparedStatement stmt = esql._connection
-					.prepareStatement("INSERT INTO Users(email, lname, fname, phone, pwd) VALUES (?, ?, ?, ?, ?)");
+					.prepareStatement(INSERT_USER);
 
 			stmt.setString(1, userEmail);
 			stmt.setString(2, userLname);
@@ -453,7 +966,7 @@ public class Ticketmaster{
 			}
 
 			// //Get new booking ID
-			temp = esql.executeQueryAndReturnResult("SELECT max(B.bid) FROM Bookings B");
+			temp = esql.executeQueryAndReturnResult(NEXT_BID);
 			bid = Integer.parseInt(temp.get(0).get(0));
 			bid++;
 
@@ -500,9 +1013,16 @@ public class Ticketmaster{
 			System.out.println(e);
 			return;
 		}
-		String stmt = "INSERT INTO Bookings(bid, status, bdatetime, seats, sid, email) VALUES (" + bid + "," + "'" + status + "'" + "," + "'" + bdatetime + "'" + "," + seats + "," + sid + "," + "'" + email + "'" + ")";
+		boolean pending = status.equals("Pending");
+		long holdUntil = System.currentTimeMillis() + HOLD_MILLIS;
+		String stmt = insertBooking(bid, status, bdatetime, seats, sid, email, holdUntil);
 		try {
 			esql.executeUpdate(stmt);
+			esql._router.recordWrite(email);
+			if (pending && esql._holds != null) {
+				esql._holds.hold(bid, holdUntil);
+			}
+			esql.logChange(ChangeLog.BOOKING_ADDED, bid, Long.parseLong(sid), Long.parseLong(seats), status + " " + email);
 		} catch (Exception e) {
 			System.out.println(e);
 			return;
@@ -511,7 +1031,6 @@ public class Ticketmaster{
 	}
 
 	public static void AddMovieShowingToTheater(Ticketmaster esql){//3
-		String stmt = "INSERT INTO Movies(mvid, title, rdate, country, description, duration, lang, genre) VALUES(";
 		int mvid = 0;
 		int duration = 0;
 		int sid = 0;
@@ -529,7 +1048,7 @@ public class Ticketmaster{
 
 		try {
 			//get next movie ID
-			temp = esql.executeQueryAndReturnResult("SELECT max(M.mvid) FROM Movies M");
+			temp = esql.executeQueryAndReturnResult(NEXT_MVID);
 			mvid = Integer.parseInt(temp.get(0).get(0));
 			mvid++;
 
@@ -574,7 +1093,7 @@ public class Ticketmaster{
 			}
 
 			//get new show ID
-			temp = esql.executeQueryAndReturnResult("SELECT max(B.bid) FROM Bookings B");
+			temp = esql.executeQueryAndReturnResult(NEXT_SID);
 			sid = Integer.parseInt(temp.get(0).get(0));
 			sid++;
 
@@ -589,17 +1108,17 @@ public class Ticketmaster{
 
 			System.out.println("Please enter the theater ID");
 			tid = Integer.parseInt(in.readLine());
+			// a theater missing from the snapshot may have been added since; only the database can say it does not exist
+			CatalogSnapshot catalog = esql.getCatalog();
+			if ((catalog == null || catalog.table("Theaters").find(tid) < 0)
+					&& esql.executeQueryAndReturnResult("SELECT T.tid FROM Theaters T WHERE T.tid = " + tid).isEmpty()){
+				System.out.println("Theater " + tid + " does not exist");
+				return;
+			}
 
-			stmt += mvid + ", '" + title + "','" + date + "', '" + country + "', '" + description + "', " + duration + ", '" + language + "', '" + genre + "')";
-			esql.executeUpdate(stmt);
-
-			stmt = "INSERT INTO Shows(sid, mvid, sdate, sttime, edtime) VALUES(";
-			stmt += sid + ", " + mvid + ", '" + sDate + "', '" + sTime + "', '" + eTime + "')";
-			esql.executeUpdate(stmt);
-
-			stmt = "INSERT INTO Plays(sid, tid) VALUES(";
-			stmt += sid + ", " + tid + ")";
-			esql.executeUpdate(stmt);
+			for (String stmt : insertMovieShowing(mvid, title, date, country, description, duration, language, genre, sid, sDate, sTime, eTime, tid)){
+				esql.executeUpdate(stmt);
+			}
 
 		} catch (Exception e){
 			System.out.println(e);
@@ -611,13 +1130,9 @@ public class Ticketmaster{
 
 	public static void CancelPendingBookings(Ticketmaster esql){//4
 		try {
-			String pstatus = "'Pending'";
-			String query = String.format("DELETE FROM Bookings WHERE status = %s", pstatus);
-			// here is the sql statement in the () above
-			// DELETE FROM Booking
-			// WHERE status = %s
-			//,pstatus)
-			esql.executeUpdate(query);
+			List<Long> bids = returnedIds(esql.executeQueryAndReturnResult(cancelPendingBookings()));
+			esql.logChanges(ChangeLog.BOOKING_DELETED, bids);
+			System.out.println("total amount of bookings cancelled: " + bids.size());
 		}catch(Exception e) {
 			System.err.println(e.getMessage());
 		}
@@ -631,50 +1146,39 @@ public class Ticketmaster{
 				String oldSeat = in.readLine();
 			System.out.print("Please enter the seat ID of the new seat that you want to change to: ");
 				String newSeat = in.readLine();
-			String query = String.format("UPDATE ShowSeats SET ssid= %s WHERE ssid  = %s AND bid = bID", newSeat, oldSeat, bID);
-				// here is the sql statement in the () above
-				// "UPDATE ShowSeats
-				// SET ssid = %s
-				// WHERE ssid  = %s
-				// AND bid = bID
-				// , newSeat, oldSeat, bID)
-			int count = esql.executeQueryAndPrintResult(query);
+			String query = changeSeatsForBooking(bID, oldSeat, newSeat);
+			esql._connection.setAutoCommit(false);
+			try {
+				int count = esql.executeUpdate(query);
+				if (count == 2) {
+					esql._connection.commit();
+					esql.logChange(ChangeLog.SEATS_CHANGED, Long.parseLong(bID), Long.parseLong(oldSeat), Long.parseLong(newSeat), "");
+				} else {
+					esql._connection.rollback();
+					System.out.println("Seat " + oldSeat + " is not reserved for booking " + bID + " or seat " + newSeat + " is not free for the same show");
+				}
+			} catch (SQLException e) {
+				esql._connection.rollback();
+				throw e;
+			} finally {
+				esql._connection.setAutoCommit(true);
+			}
 			}catch(Exception e) {
 				System.err.println(e.getMessage());
 			}
-
-		//Because the current implementation of this function doesn't check if the seats are unique, I tried to come up with another solution:
-		// UPDATE ShowSeats
-		// SET S1.ssid = S2.ssid <= potential error?
-		// FROM ShowSeats S1, ShowSeats S2
-		// WHERE S1.ssid = %s AND S2.ssid = %s
-		// AND S1.bid = %s AND S1.price = S2.price
-		// AND UNIQUE(S1.sid, S2.ssid)
-		// , oldSeat, newSeat, bID)
-		// However, I am less certain this implementation will work as I don't know if line 2(marked with arrow)is valid.
 	}
 
 	public static void RemovePayment(Ticketmaster esql){//6
 		try{
-			String canc = "'cancelled'";
 			System.out.print("Please enter the bookingID of the booking to remove the payment from: ");
 			String bID = in.readLine();
 
-			String query = String.format("DELETE FROM Payments WHERE bid = %s", bID);
-			// here is the sql statement in the () above
-			// DELETE FROM Payment
-			// WHERE bookingID = %s
-			// ,bID)
-			int count = esql.executeQueryAndPrintResult(query);
+			int count = esql.executeUpdate(removePayment(bID));
+			if (count > 0) esql.logChange(ChangeLog.PAYMENT_REMOVED, Long.parseLong(bID), 0, 0, "");
 			System.out.println("total amount of payments removed: " + count);
 
-			String query2 = String.format("UPDATE Bookings SET status = %s WHERE bid = %s", canc,bID);
-			// here is the sql statement in the () above
-			// UPDATE Booking
-			// SET status = %s
-			// WHERE bookingID = %s
-			// ,canc,bID)
-			count = esql.executeQueryAndPrintResult(query2);
+			count = esql.executeUpdate(cancelBooking(bID));
+			if (count > 0) esql.logChange(ChangeLog.BOOKING_CANCELLED, Long.parseLong(bID), 0, 0, "");
 			System.out.println("total amount of bookings cancelled: " + count);
 
 		}catch(Exception e) {
@@ -684,13 +1188,7 @@ public class Ticketmaster{
 
 	public static void ClearCancelledBookings(Ticketmaster esql){//7
 		try {
-			String cstatus = "'Cancelled'";
-			String query = String.format("DELETE FROM Bookings WHERE status = %s", cstatus);
-			// here is the sql statement in the () above
-			// DELETE FROM Booking
-			// WHERE status = %s
-			// ,cstatus)
-			esql.executeUpdate(query);
+			esql.logChanges(ChangeLog.BOOKING_DELETED, returnedIds(esql.executeQueryAndReturnResult(clearCancelledBookings())));
 		}catch(Exception e) {
 			System.err.println(e.getMessage());
 		}
@@ -700,19 +1198,62 @@ public class Ticketmaster{
 		try {
 			System.out.print("Please enter the date to remove the shows: ");
 			String uDate = in.readLine();
-			String query = String.format("DELETE FROM Shows WHERE sdate = '%s'", uDate);
-			// here is the sql statement in the () above
-			// DELETE Show
-			// WHERE date = %s
-			//,uDate)
-			int count = esql.executeQueryAndPrintResult(query);
-			System.out.println("total amount of shows removed: " + count);
+			// the bookings of a show go with it, so the change log records the show
+			List<Long> sids = returnedIds(esql.executeQueryAndReturnResult(removeShowsOnDate(uDate)));
+			esql.logChanges(ChangeLog.SHOW_REMOVED, sids);
+			System.out.println("total amount of shows removed: " + sids.size());
 			System.out.print("Shows have been cancelled, please remove the payments for that date using operation 4. ");
 		}catch(Exception e) {
 			System.err.println(e.getMessage());
 		}
 	}
 
+	//the ids a DELETE ... RETURNING returned
+	private static List<Long> returnedIds(List<List<String>> rows){
+		List<Long> ids = new ArrayList<Long>(rows.size());
+		for (List<String> row : rows){
+			ids.add(Long.parseLong(row.get(0)));
+		}
+		return ids;
+	}
+
+	/**
+	 * Method to print a paged query one page at a time. It asks for the page
+	 * size and an optional continuation token, and after every page prints
+	 * the token of the next one and asks whether to go on.
+	 *
+	 * @param esql the database to query
+	 * @param listing the paged query of the operation
+	 * @return the number of rows printed
+	 * @throws java.lang.Exception when reading input or executing a page failed
+	 */
+	private static int printPages(Ticketmaster esql, KeysetQuery listing) throws Exception {
+		System.out.print("Please enter the page size, or nothing for " + KeysetQuery.DEFAULT_PAGE_SIZE + ": ");
+		String size = in.readLine().trim();
+		int pageSize = size.length() == 0 ? KeysetQuery.DEFAULT_PAGE_SIZE : Integer.parseInt(size);
+		if (pageSize <= 0){
+			System.out.println("Page size must be greater than 0");
+			return 0;
+		}
+		System.out.print("Please enter the continuation token, or nothing to start at the first page: ");
+		KeysetQuery query = listing.restart(pageSize, in.readLine());
+
+		int rowCount = 0;
+		while (true){
+			Connection conn = esql.currentConnection();
+			try {
+				rowCount += query.printNextPage(conn);
+			}catch(SQLException e){
+				rowCount += query.printNextPage(esql.retryConnection(conn, e));
+			}
+			if (!query.hasMore()) break;
+			System.out.println("continuation token: " + query.getToken());
+			System.out.print("Show the next page? (y/n): ");
+			if (!in.readLine().trim().equalsIgnoreCase("y")) break;
+		}
+		return rowCount;
+	}
+
 	public static void ListTheatersPlayingShow(Ticketmaster esql){//9
 		//
 		try {
@@ -720,17 +1261,7 @@ public class Ticketmaster{
 			String cinID = in.readLine();
 			System.out.print("Please enter in show ID: ");
 			String showID = in.readLine();
-			String query = String.format("SELECT T.tname FROM Plays P, Theaters T, Cinemas C, Shows S WHERE T.cid = C.cid AND C.cid = %s AND S.sid = %s AND P.sid = S.sid AND P.tid = T.tid", cinID, showID);
-			// here is the sql statement in the () above
-			// SELECT T.theaterName
-			// FROM played_in P, Cinema_Theather T, Cinema C, Show S
-			// WHERE T.cinemaID = C.cinemaID
-			// AND C.cinemaID = %s
-			// AND S.showID = %s
-			// AND P.showID = S.showID
-			// AND P.cinemaTheatherID = T.cinemaTheatherID
-			//,cinID, showID);
-			int count = esql.executeQueryAndPrintResult(query);
+			int count = printPages(esql, theatersPlayingShow(Long.parseLong(cinID), Long.parseLong(showID)));
 			System.out.println("total amount of theaters: " + count);
 		}catch(Exception e) {
 			System.err.println(e.getMessage());
@@ -744,14 +1275,7 @@ public class Ticketmaster{
 			String stime = in.readLine();
 			System.out.print("Please enter in the date: ");
 			String sdate = in.readLine();
-			String query = String.format("SELECT S.sid FROM Shows S WHERE S.sttime = '%s' AND S.sdate = '%s'", stime, sdate);
-			// here is the sql statement in the () above
-			// SELECT S.showID
-			// FROM Show S
-			// WHERE S.startTime = %s
-			// AND S.date = %s
-			//,stime,sdate);
-			int count = esql.executeQueryAndPrintResult(query);
+			int count = printPages(esql, showsStartingOnTimeAndDate(stime, sdate));
 			System.out.println("total amount of shows: " + count);
 		}catch(Exception e) {
 			System.err.println(e.getMessage());
@@ -760,9 +1284,8 @@ public class Ticketmaster{
 
 	public static void ListMovieTitlesContainingLoveReleasedAfter2010(Ticketmaster esql){//11
 		//
-		String stmt = "SELECT title FROM movies WHERE title LIKE '%Love%' AND rdate > '12/31/2010'";
 		try {
-			esql.executeQueryAndPrintResult(stmt);
+			printPages(esql, movieTitlesContainingLoveReleasedAfter2010());
 		} catch (Exception e){
 			System.out.println(e);
 			return;
@@ -771,10 +1294,8 @@ public class Ticketmaster{
 
 	public static void ListUsersWithPendingBooking(Ticketmaster esql){//12
 		//
-		String stmt = "SELECT U.fname, U.lname, U.email FROM users U, bookings B WHERE B.STATUS = 'Pending' AND B.email = U.email;";
-
 		try {
-			esql.executeQueryAndPrintResult(stmt);
+			printPages(esql, usersWithPendingBooking());
 		} catch (Exception e) {
 			System.out.println(e);
 			return;
@@ -784,7 +1305,6 @@ public class Ticketmaster{
 
 	public static void ListMovieAndShowInfoAtCinemaInDateRange(Ticketmaster esql){//13
 		//
-		String stmt = "SELECT M.title, M.duration, S.sdate, S.sttime FROM movies M, shows S, cinemas C, theaters T, plays P WHERE M.title = '";
 		String title = "";
 		int cid = 0;
 		String startDate = "";
@@ -803,9 +1323,7 @@ public class Ticketmaster{
 			System.out.println("Please enter the end date in this format: dd/mm/yyyy");
 			endDate = in.readLine();
 
-			stmt += title + "' AND C.cid = " + cid + " AND C.cid = T.cid AND T.tid = P.tid AND S.sid = P.sid AND M.mvid = S.mvid AND S.sdate >= '" + startDate + "' AND S.sdate <= '" + endDate + "';";
-
-			esql.executeQueryAndPrintResult(stmt);
+			printPages(esql, movieAndShowInfoAtCinemaInDateRange(title, cid, startDate, endDate));
 
 
 		} catch(Exception e){
@@ -820,18 +1338,144 @@ public class Ticketmaster{
 
 	public static void ListBookingInfoForUser(Ticketmaster esql){//14
 		//
-		String stmt = "SELECT DISTINCT M.title, S.sdate, S.sttime, T.tname, C.sno FROM bookings B, movies M, shows S, theaters T, cinemaseats C, plays P WHERE B.email = '";
 		String email = "";
 		try {
 			System.out.println("Please enter user's email:");
 			email = in.readLine();
+			esql.readAs(email);
 
-			stmt += email + "' AND S.sid = B.bid AND P.tid = T.tid AND S.sid = P.sid;";
-			esql.executeQueryAndPrintResult(stmt);
+			printPages(esql, bookingInfoForUser(email));
 		} catch (Exception e){
 			System.out.println(e);
 			return;
 		}
 	}
 
+	public static void SearchShowtimesInCity(Ticketmaster esql){//15
+		try {
+			System.out.print("Please enter in the city ID: ");
+			long cityID = Long.parseLong(in.readLine());
+			System.out.print("Please enter in the date: ");
+			String sdate = in.readLine();
+			System.out.print("Please enter the maximum number of showtimes to list: ");
+			int limit = Integer.parseInt(in.readLine());
+			if (limit <= 0){
+				System.out.println("Must list at least one showtime");
+				return;
+			}
+
+			List<ShowtimeSearch.Showtime> result = esql.getShowtimeSearch().search(cityID, sdate, limit);
+			System.out.println("sttime\tedtime\ttitle\tcname\ttname\tsid\t");
+			for (ShowtimeSearch.Showtime show : result){
+				System.out.println(show);
+			}
+			System.out.println("total amount of showtimes: " + result.size());
+		}catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void ShowSeatHoldStatus(Ticketmaster esql){//16
+		if (esql._holds == null){
+			System.out.println("Seat hold expiry is not running");
+			return;
+		}
+		System.out.println("seat holds waiting to expire: " + esql._holds.size());
+		System.out.println("seat holds expired since start: " + esql._holds.getExpiredTotal());
+		System.out.println("expiry lag (ms): " + esql._holds.getExpiryLagMillis());
+	}
+
+	public static void ReportCinemaOccupancy(Ticketmaster esql){//17
+		try {
+			System.out.print("Please enter the cinema ID, or nothing for all cinemas: ");
+			String cid = in.readLine().trim();
+			System.out.print("Please enter the start date: ");
+			String startDate = in.readLine();
+			System.out.print("Please enter the end date: ");
+			String endDate = in.readLine();
+
+			String query;
+			if (cid.length() == 0){
+				query = String.format("SELECT C.cid, C.cname, sum(D.shows) AS shows, sum(D.booked_seats) AS booked_seats, sum(D.capacity) AS capacity, round(100.0 * sum(D.booked_seats) / nullif(sum(D.capacity), 0), 1) AS occupancy, sum(D.revenue) AS revenue FROM CinemaDayStats D, Cinemas C WHERE D.sdate BETWEEN '%s' AND '%s' AND C.cid = D.cid GROUP BY C.cid, C.cname ORDER BY C.cid", startDate, endDate);
+				// here is the sql statement in the () above
+				// SELECT C.cid, C.cname, sum(D.shows) AS shows, sum(D.booked_seats) AS booked_seats,
+				//        sum(D.capacity) AS capacity,
+				//        round(100.0 * sum(D.booked_seats) / nullif(sum(D.capacity), 0), 1) AS occupancy,
+				//        sum(D.revenue) AS revenue
+				// FROM CinemaDayStats D, Cinemas C
+				// WHERE D.sdate BETWEEN '%s' AND '%s' AND C.cid = D.cid
+				// GROUP BY C.cid, C.cname
+				// ORDER BY C.cid
+				//, startDate, endDate)
+			}else{
+				query = String.format("SELECT D.sdate, D.shows, D.booked_seats, D.capacity, round(100.0 * D.booked_seats / nullif(D.capacity, 0), 1) AS occupancy, D.revenue FROM CinemaDayStats D WHERE D.cid = %d AND D.sdate BETWEEN '%s' AND '%s' ORDER BY D.sdate", Long.parseLong(cid), startDate, endDate);
+				// here is the sql statement in the () above
+				// SELECT D.sdate, D.shows, D.booked_seats, D.capacity,
+				//        round(100.0 * D.booked_seats / nullif(D.capacity, 0), 1) AS occupancy, D.revenue
+				// FROM CinemaDayStats D
+				// WHERE D.cid = %d AND D.sdate BETWEEN '%s' AND '%s'
+				// ORDER BY D.sdate
+				//, cid, startDate, endDate)
+			}
+			int count = esql.executeQueryAndPrintResult(query);
+			System.out.println("total amount of rows: " + count);
+		}catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void ReportMovieRevenue(Ticketmaster esql){//18
+		try {
+			System.out.print("Please enter the start date: ");
+			String startDate = in.readLine();
+			System.out.print("Please enter the end date: ");
+			String endDate = in.readLine();
+			String query = String.format("SELECT D.sdate, M.title, D.shows, D.booked_seats, D.capacity, round(100.0 * D.booked_seats / nullif(D.capacity, 0), 1) AS occupancy, D.revenue FROM MovieDayStats D, Movies M WHERE D.sdate BETWEEN '%s' AND '%s' AND M.mvid = D.mvid ORDER BY D.sdate, D.revenue DESC, D.mvid", startDate, endDate);
+			// here is the sql statement in the () above
+			// SELECT D.sdate, M.title, D.shows, D.booked_seats, D.capacity,
+			//        round(100.0 * D.booked_seats / nullif(D.capacity, 0), 1) AS occupancy, D.revenue
+			// FROM MovieDayStats D, Movies M
+			// WHERE D.sdate BETWEEN '%s' AND '%s' AND M.mvid = D.mvid
+			// ORDER BY D.sdate, D.revenue DESC, D.mvid
+			//, startDate, endDate)
+			int count = esql.executeQueryAndPrintResult(query);
+			System.out.println("total amount of rows: " + count);
+		}catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void ReportShowOccupancy(Ticketmaster esql){//19
+		try {
+			System.out.print("Please enter in show ID: ");
+			long sid = Long.parseLong(in.readLine());
+			String query = String.format("SELECT SS.sid, M.title, SS.sdate, SS.cid, SS.booked_seats, SS.capacity, round(100.0 * SS.booked_seats / nullif(SS.capacity, 0), 1) AS occupancy, SS.revenue FROM ShowStats SS, Movies M WHERE SS.sid = %d AND M.mvid = SS.mvid", sid);
+			// here is the sql statement in the () above
+			// SELECT SS.sid, M.title, SS.sdate, SS.cid, SS.booked_seats, SS.capacity,
+			//        round(100.0 * SS.booked_seats / nullif(SS.capacity, 0), 1) AS occupancy, SS.revenue
+			// FROM ShowStats SS, Movies M
+			// WHERE SS.sid = %d AND M.mvid = SS.mvid
+			//, sid)
+			if (esql.executeQueryAndPrintResult(query) == 0){
+				System.out.println("Show " + sid + " is not in the rollups yet");
+			}
+		}catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void RebuildRollups(Ticketmaster esql){//20
+		try {
+			System.out.print("Please enter the start date: ");
+			String startDate = in.readLine();
+			System.out.print("Please enter the end date: ");
+			String endDate = in.readLine();
+			long start = System.nanoTime();
+			int count = Rollups.rebuild(esql, startDate, endDate, Rollups.DEFAULT_PARALLELISM);
+			System.out.println(String.format("total amount of shows rebuilt: %d in %.1f ms", count, (System.nanoTime() - start) / 1e6));
+		}catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
 }
@@ -19,4 +19,9 @@ sleep 1
 cp $root/data/*.csv /tmp/$(logname)/mydb/data/
 
 echo "Initializing tables .. "
-psql -h localhost $dbname < $root/sql/create.sql
\ No newline at end of file
+psql -h localhost $dbname < $root/sql/create.sql
+
+if [ -n "$PGREPLICAPORT" ]; then
+	echo "Starting read-only replica .. "
+	$root/postgresql/startreplica.sh
+fi
@@ -0,0 +1,23 @@
+#!/bin/bash
+folder=/tmp/$(logname)/mydb_replica
+PGDATA=$folder/data
+PGSOCKETS=$folder/sockets
+export PGDATA
+export PGSOCKETS
+
+primaryport=${PGPORT:-5432}
+replicaport=${PGREPLICAPORT:-$((primaryport + 1))}
+
+#Initialize folders
+rm -fr $PGDATA
+rm -fr $PGSOCKETS
+mkdir -p $PGSOCKETS
+
+#Copy the running primary; -R writes standby.signal and primary_conninfo
+echo "Cloning primary on port $primaryport ... "
+pg_basebackup -h localhost -p $primaryport -D $PGDATA -R -X stream
+chmod 700 $PGDATA
+
+#Start the streaming replica
+echo "Starting replica on port $replicaport ... "
+pg_ctl -o "-p $replicaport -c hot_standby=on -c unix_socket_directories=$PGSOCKETS" -D $PGDATA -l $folder/logfile start
@@ -5,3 +5,8 @@ PGSOCKETS=$folder/sockets
 export PGDATA
 export PGSOCKETS
 pg_ctl -o "-c unix_socket_directories=$PGSOCKETS" -D $PGDATA -l $folder/logfile stop
+
+replica=/tmp/$(logname)/mydb_replica
+if [ -d $replica/data ]; then
+	pg_ctl -D $replica/data stop
+fi
@@ -1,3 +1,7 @@
+DROP TABLE IF EXISTS CatalogVersions;
+DROP TABLE IF EXISTS MovieDayStats;
+DROP TABLE IF EXISTS CinemaDayStats;
+DROP TABLE IF EXISTS ShowStats;
 DROP TABLE IF EXISTS Plays;
 DROP TABLE IF EXISTS ShowSeats;
 DROP TABLE IF EXISTS Payments;
@@ -85,6 +89,7 @@ CREATE TABLE Bookings (
     seats INTEGER NOT NULL,  -- Number of seats booked
     sid BIGINT NOT NULL,  -- Show ID
     email VARCHAR(64) NOT NULL,  -- User account
+    hold_until TIMESTAMPTZ,  -- When a pending booking releases its seats
     PRIMARY KEY(bid),
     FOREIGN KEY(sid) REFERENCES Shows(sid) ON DELETE CASCADE,
     FOREIGN KEY(email) REFERENCES Users(email)    
@@ -128,6 +133,14 @@ CREATE TABLE Plays (
 );
 
 
+-- Sort keys of the paged list operations, so each page is an index range scan
+
+CREATE INDEX Shows_sdate_sttime_sid ON Shows(sdate, sttime, sid);
+CREATE INDEX Bookings_status_bid ON Bookings(status, bid);
+CREATE INDEX Bookings_email ON Bookings(email);
+CREATE INDEX Theaters_cid_tid ON Theaters(cid, tid);
+
+
 ----------------------------
 -- INSERT DATA STATEMENTS --
 ----------------------------
@@ -239,3 +252,316 @@ COPY Plays (
 )
 FROM 'Plays.csv'
 WITH DELIMITER ',';
+
+
+----------------------
+-- CATALOG VERSIONS --
+----------------------
+
+-- One version per reference table, bumped by a statement trigger on every
+-- change, so a client can tell its cached copy of the table (the catalog
+-- snapshot) is current without scanning the table. Versions start at the
+-- creation time in milliseconds, so a recreated database never repeats the
+-- versions of the old one.
+
+CREATE TABLE CatalogVersions (
+    tname VARCHAR(64) NOT NULL,  -- Table name, lower case
+    version BIGINT NOT NULL,
+    PRIMARY KEY(tname)
+);
+
+INSERT INTO CatalogVersions
+SELECT T.tname, (extract(epoch FROM clock_timestamp()) * 1000)::BIGINT
+FROM (VALUES ('cities'), ('cinemas'), ('theaters'), ('cinemaseats'), ('movies')) AS T(tname);
+
+CREATE OR REPLACE FUNCTION bump_catalog_version() RETURNS trigger AS $$
+BEGIN
+    UPDATE CatalogVersions SET version = version + 1 WHERE tname = TG_TABLE_NAME;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER cities_version AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Cities
+    FOR EACH STATEMENT EXECUTE PROCEDURE bump_catalog_version();
+CREATE TRIGGER cinemas_version AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Cinemas
+    FOR EACH STATEMENT EXECUTE PROCEDURE bump_catalog_version();
+CREATE TRIGGER theaters_version AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Theaters
+    FOR EACH STATEMENT EXECUTE PROCEDURE bump_catalog_version();
+CREATE TRIGGER cinemaseats_version AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON CinemaSeats
+    FOR EACH STATEMENT EXECUTE PROCEDURE bump_catalog_version();
+CREATE TRIGGER movies_version AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Movies
+    FOR EACH STATEMENT EXECUTE PROCEDURE bump_catalog_version();
+
+
+-------------------------
+-- REPORTING ROLLUPS --
+-------------------------
+
+-- Occupancy and revenue per show, per cinema and day and per movie and day.
+-- Triggers on the base tables keep ShowStats current, and a trigger on
+-- ShowStats passes each change on to the day rollups, so reports read a few
+-- rows instead of joining ShowSeats, Bookings and Payments.
+--
+-- A show plays in the theaters of one cinema only (plays_one_cinema), so all
+-- of its capacity, bookings and revenue belong to ShowStats.cid. The triggers
+-- follow every column the rollups are computed from: Shows.sdate and mvid,
+-- Plays, Theaters.tseats and cid, ShowSeats.bid and sid, Payments.amount and
+-- bid, and deleted Bookings.
+
+CREATE TABLE ShowStats (
+    sid BIGINT NOT NULL,  -- Show ID
+    mvid BIGINT NOT NULL,  -- Movie ID
+    sdate DATE NOT NULL,  -- Show date
+    cid BIGINT,  -- Cinema of the theaters playing the show, NULL if none
+    capacity BIGINT NOT NULL DEFAULT 0,  -- Seats of the theaters playing the show
+    booked_seats BIGINT NOT NULL DEFAULT 0,  -- ShowSeats with a booking
+    revenue NUMERIC(14, 2) NOT NULL DEFAULT 0,  -- Payments of the show's bookings
+    PRIMARY KEY(sid),
+    FOREIGN KEY(sid) REFERENCES Shows(sid) ON DELETE CASCADE
+);
+CREATE INDEX ShowStats_sdate ON ShowStats(sdate);
+
+CREATE TABLE CinemaDayStats (
+    cid BIGINT NOT NULL,  -- Cinema ID
+    sdate DATE NOT NULL,  -- Show date
+    shows INTEGER NOT NULL,
+    capacity BIGINT NOT NULL,
+    booked_seats BIGINT NOT NULL,
+    revenue NUMERIC(14, 2) NOT NULL,
+    PRIMARY KEY(cid, sdate)
+);
+CREATE INDEX CinemaDayStats_sdate ON CinemaDayStats(sdate);
+
+CREATE TABLE MovieDayStats (
+    mvid BIGINT NOT NULL,  -- Movie ID
+    sdate DATE NOT NULL,  -- Show date
+    shows INTEGER NOT NULL,
+    capacity BIGINT NOT NULL,
+    booked_seats BIGINT NOT NULL,
+    revenue NUMERIC(14, 2) NOT NULL,
+    PRIMARY KEY(mvid, sdate)
+);
+CREATE INDEX MovieDayStats_sdate ON MovieDayStats(sdate);
+
+-- Adds a delta to the ShowStats row of a show, creating the row if needed
+CREATE OR REPLACE FUNCTION add_show_stats(show_id BIGINT, seats BIGINT, booked BIGINT, amount NUMERIC)
+RETURNS void AS $$
+BEGIN
+    INSERT INTO ShowStats(sid, mvid, sdate, capacity, booked_seats, revenue)
+    SELECT S.sid, S.mvid, S.sdate, seats, booked, amount FROM Shows S WHERE S.sid = show_id
+    ON CONFLICT (sid) DO UPDATE SET
+        capacity = ShowStats.capacity + EXCLUDED.capacity,
+        booked_seats = ShowStats.booked_seats + EXCLUDED.booked_seats,
+        revenue = ShowStats.revenue + EXCLUDED.revenue;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Every show has a ShowStats row from the start, as rebuild_rollups gives it
+-- one, so both count a show without Plays or bookings the same way. A show
+-- moved to another day or movie moves its row, and day_rollups moves its
+-- numbers from the old day rollups to the new ones.
+CREATE OR REPLACE FUNCTION shows_rollup() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        PERFORM add_show_stats(NEW.sid, 0, 0, 0);
+    ELSE
+        UPDATE ShowStats SET sdate = NEW.sdate, mvid = NEW.mvid WHERE sid = NEW.sid;
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Rejects a Plays row that would put a show in the theaters of two cinemas;
+-- the row an UPDATE replaces does not count. The show row is locked first,
+-- so two such rows added at the same time are checked one after the other.
+CREATE OR REPLACE FUNCTION plays_one_cinema() RETURNS trigger AS $$
+DECLARE
+    old_sid BIGINT;
+    old_tid BIGINT;
+BEGIN
+    IF TG_OP = 'UPDATE' THEN
+        old_sid := OLD.sid;
+        old_tid := OLD.tid;
+    END IF;
+    PERFORM 1 FROM Shows S WHERE S.sid = NEW.sid FOR NO KEY UPDATE;
+    IF EXISTS (SELECT 1 FROM Plays P, Theaters T, Theaters N
+               WHERE P.sid = NEW.sid AND (P.sid, P.tid) IS DISTINCT FROM (old_sid, old_tid)
+               AND T.tid = P.tid AND N.tid = NEW.tid AND T.cid <> N.cid) THEN
+        RAISE EXCEPTION 'show % already plays in another cinema than the one of theater %', NEW.sid, NEW.tid
+            USING ERRCODE = 'check_violation';
+    END IF;
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION plays_rollup() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP IN ('UPDATE', 'DELETE') THEN
+        PERFORM add_show_stats(OLD.sid, -(SELECT T.tseats FROM Theaters T WHERE T.tid = OLD.tid), 0, 0);
+        UPDATE ShowStats SET cid = (SELECT min(T.cid) FROM Plays P, Theaters T WHERE P.sid = OLD.sid AND T.tid = P.tid)
+        WHERE sid = OLD.sid;
+    END IF;
+    IF TG_OP IN ('UPDATE', 'INSERT') THEN
+        PERFORM add_show_stats(NEW.sid, (SELECT T.tseats FROM Theaters T WHERE T.tid = NEW.tid), 0, 0);
+        UPDATE ShowStats SET cid = (SELECT T.cid FROM Theaters T WHERE T.tid = NEW.tid)
+        WHERE sid = NEW.sid;
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- A theater that changes size changes the capacity of every show it plays;
+-- one moved to another cinema takes its shows along, unless a show also
+-- plays in a theater that stays behind
+CREATE OR REPLACE FUNCTION theaters_rollup() RETURNS trigger AS $$
+BEGIN
+    IF NEW.cid <> OLD.cid AND EXISTS (SELECT 1 FROM Plays P, Plays Q, Theaters T
+            WHERE P.tid = NEW.tid AND Q.sid = P.sid AND T.tid = Q.tid AND T.cid <> NEW.cid) THEN
+        RAISE EXCEPTION 'theater % plays shows that also play in cinema %', NEW.tid, OLD.cid
+            USING ERRCODE = 'check_violation';
+    END IF;
+    UPDATE ShowStats SET capacity = capacity + NEW.tseats - OLD.tseats, cid = NEW.cid
+    WHERE sid IN (SELECT P.sid FROM Plays P WHERE P.tid = NEW.tid);
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION showseats_rollup() RETURNS trigger AS $$
+BEGIN
+    -- OLD and NEW are only read where the operation sets them
+    IF TG_OP IN ('UPDATE', 'DELETE') THEN
+        IF OLD.bid IS NOT NULL THEN
+            PERFORM add_show_stats(OLD.sid, 0, -1, 0);
+        END IF;
+    END IF;
+    IF TG_OP IN ('UPDATE', 'INSERT') THEN
+        IF NEW.bid IS NOT NULL THEN
+            PERFORM add_show_stats(NEW.sid, 0, 1, 0);
+        END IF;
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- A payment deleted by the cascade of its booking finds no booking any more;
+-- bookings_rollup has already taken its amount off the show.
+CREATE OR REPLACE FUNCTION payments_rollup() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP IN ('UPDATE', 'DELETE') THEN
+        UPDATE ShowStats SET revenue = revenue - OLD.amount::NUMERIC
+        WHERE sid = (SELECT B.sid FROM Bookings B WHERE B.bid = OLD.bid);
+    END IF;
+    IF TG_OP IN ('UPDATE', 'INSERT') THEN
+        PERFORM add_show_stats(B.sid, 0, 0, NEW.amount::NUMERIC) FROM Bookings B WHERE B.bid = NEW.bid;
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION bookings_rollup() RETURNS trigger AS $$
+BEGIN
+    UPDATE ShowStats SET revenue = revenue - (SELECT coalesce(sum(P.amount), 0)::NUMERIC FROM Payments P WHERE P.bid = OLD.bid)
+    WHERE sid = OLD.sid;
+    RETURN OLD;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Moves a change of ShowStats into the day rollups, unless rebuild_rollups
+-- is rewriting them itself
+CREATE OR REPLACE FUNCTION day_rollups() RETURNS trigger AS $$
+BEGIN
+    IF current_setting('ticketmaster.rollup_rebuild', true) = 'on' THEN
+        RETURN NULL;
+    END IF;
+    IF TG_OP IN ('UPDATE', 'DELETE') THEN
+        IF OLD.cid IS NOT NULL THEN
+            UPDATE CinemaDayStats SET shows = shows - 1, capacity = capacity - OLD.capacity,
+                booked_seats = booked_seats - OLD.booked_seats, revenue = revenue - OLD.revenue
+            WHERE cid = OLD.cid AND sdate = OLD.sdate;
+        END IF;
+        UPDATE MovieDayStats SET shows = shows - 1, capacity = capacity - OLD.capacity,
+            booked_seats = booked_seats - OLD.booked_seats, revenue = revenue - OLD.revenue
+        WHERE mvid = OLD.mvid AND sdate = OLD.sdate;
+    END IF;
+    IF TG_OP IN ('UPDATE', 'INSERT') THEN
+        IF NEW.cid IS NOT NULL THEN
+            INSERT INTO CinemaDayStats VALUES (NEW.cid, NEW.sdate, 1, NEW.capacity, NEW.booked_seats, NEW.revenue)
+            ON CONFLICT (cid, sdate) DO UPDATE SET shows = CinemaDayStats.shows + 1,
+                capacity = CinemaDayStats.capacity + EXCLUDED.capacity,
+                booked_seats = CinemaDayStats.booked_seats + EXCLUDED.booked_seats,
+                revenue = CinemaDayStats.revenue + EXCLUDED.revenue;
+        END IF;
+        INSERT INTO MovieDayStats VALUES (NEW.mvid, NEW.sdate, 1, NEW.capacity, NEW.booked_seats, NEW.revenue)
+        ON CONFLICT (mvid, sdate) DO UPDATE SET shows = MovieDayStats.shows + 1,
+            capacity = MovieDayStats.capacity + EXCLUDED.capacity,
+            booked_seats = MovieDayStats.booked_seats + EXCLUDED.booked_seats,
+            revenue = MovieDayStats.revenue + EXCLUDED.revenue;
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Recomputes the rollups of the shows in [from_date, to_date) from the base
+-- tables. Calls for disjoint ranges can run at the same time; writers of
+-- Shows, ShowSeats, Payments, Bookings, Plays and Theaters wait until the
+-- call commits.
+CREATE OR REPLACE FUNCTION rebuild_rollups(from_date DATE, to_date DATE)
+RETURNS INTEGER AS $$
+DECLARE
+    rebuilt INTEGER;
+BEGIN
+    LOCK TABLE Shows, ShowSeats, Payments, Bookings, Plays, Theaters IN SHARE MODE;
+    PERFORM set_config('ticketmaster.rollup_rebuild', 'on', true);
+
+    DELETE FROM ShowStats WHERE sdate >= from_date AND sdate < to_date;
+    WITH S AS (
+        SELECT sid, mvid, sdate FROM Shows WHERE sdate >= from_date AND sdate < to_date
+    ), seats AS (
+        SELECT SS.sid, count(*) AS booked FROM S, ShowSeats SS
+        WHERE SS.sid = S.sid AND SS.bid IS NOT NULL GROUP BY SS.sid
+    ), pay AS (
+        SELECT B.sid, sum(P.amount::NUMERIC) AS amount FROM S, Bookings B, Payments P
+        WHERE B.sid = S.sid AND P.bid = B.bid GROUP BY B.sid
+    ), cap AS (
+        SELECT P.sid, min(T.cid) AS cid, sum(T.tseats) AS seats FROM S, Plays P, Theaters T
+        WHERE P.sid = S.sid AND T.tid = P.tid GROUP BY P.sid
+    )
+    INSERT INTO ShowStats(sid, mvid, sdate, cid, capacity, booked_seats, revenue)
+    SELECT S.sid, S.mvid, S.sdate, cap.cid, coalesce(cap.seats, 0), coalesce(seats.booked, 0), coalesce(pay.amount, 0)
+    FROM S LEFT JOIN cap ON cap.sid = S.sid LEFT JOIN seats ON seats.sid = S.sid LEFT JOIN pay ON pay.sid = S.sid;
+    GET DIAGNOSTICS rebuilt = ROW_COUNT;
+
+    DELETE FROM CinemaDayStats WHERE sdate >= from_date AND sdate < to_date;
+    INSERT INTO CinemaDayStats
+    SELECT cid, sdate, count(*), sum(capacity), sum(booked_seats), sum(revenue) FROM ShowStats
+    WHERE sdate >= from_date AND sdate < to_date AND cid IS NOT NULL GROUP BY cid, sdate;
+
+    DELETE FROM MovieDayStats WHERE sdate >= from_date AND sdate < to_date;
+    INSERT INTO MovieDayStats
+    SELECT mvid, sdate, count(*), sum(capacity), sum(booked_seats), sum(revenue) FROM ShowStats
+    WHERE sdate >= from_date AND sdate < to_date GROUP BY mvid, sdate;
+
+    PERFORM set_config('ticketmaster.rollup_rebuild', 'off', true);
+    RETURN rebuilt;
+END;
+$$ LANGUAGE plpgsql;
+
+-- The triggers are created after the data is loaded; one rebuild fills the rollups
+SELECT rebuild_rollups('-infinity', 'infinity');
+
+CREATE TRIGGER shows_rollup AFTER INSERT OR UPDATE OF sdate, mvid ON Shows
+    FOR EACH ROW EXECUTE PROCEDURE shows_rollup();
+CREATE TRIGGER plays_one_cinema BEFORE INSERT OR UPDATE ON Plays
+    FOR EACH ROW EXECUTE PROCEDURE plays_one_cinema();
+CREATE TRIGGER plays_rollup AFTER INSERT OR DELETE OR UPDATE ON Plays
+    FOR EACH ROW EXECUTE PROCEDURE plays_rollup();
+CREATE TRIGGER theaters_rollup AFTER UPDATE OF tseats, cid ON Theaters
+    FOR EACH ROW EXECUTE PROCEDURE theaters_rollup();
+CREATE TRIGGER showseats_rollup AFTER INSERT OR DELETE OR UPDATE OF bid, sid ON ShowSeats
+    FOR EACH ROW EXECUTE PROCEDURE showseats_rollup();
+CREATE TRIGGER payments_rollup AFTER INSERT OR DELETE OR UPDATE OF amount, bid ON Payments
+    FOR EACH ROW EXECUTE PROCEDURE payments_rollup();
+CREATE TRIGGER bookings_rollup BEFORE DELETE ON Bookings
+    FOR EACH ROW EXECUTE PROCEDURE bookings_rollup();
+CREATE TRIGGER day_rollups AFTER INSERT OR DELETE OR UPDATE ON ShowStats
+    FOR EACH ROW EXECUTE PROCEDURE day_rollups();